@@ -0,0 +1,241 @@
+package hudson.plugins.xvnc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput and latency of {@link DisplayAllocator} with many executors on a node and the range filling up.
+ *
+ * Run by <tt>mvn -Pbenchmark test</tt>. Every benchmark is measured with 1 to 64 threads, or the counts given
+ * by <tt>-Dbenchmark.threads=1,8</tt>, in throughput and sample time mode; the latter reports percentiles.
+ * Results are written to <tt>target/benchmark/allocator.csv</tt>. With <tt>-Dbenchmark.baseline=&lt;csv&gt;</tt>
+ * the scores are compared to those of an earlier run, which has to be made on the same machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DisplayAllocatorBenchmark {
+
+    private static final int MIN = 0;
+
+    /**
+     * Numbers a thread holds at most.
+     */
+    private static final int HOLD = 4;
+
+    @Param({"256", "4096"})
+    public int range;
+
+    /**
+     * Percentage of the range allocated before measuring.
+     */
+    @Param({"0", "50", "90", "99"})
+    public int occupancy;
+
+    @Param({"0", "8", "64"})
+    public int blacklisted;
+
+    private DisplayAllocator allocator;
+    private int max;
+
+    /**
+     * Blacklist and allocate numbers spread over the range. Every thread is left room for {@link #HOLD} numbers
+     * so allocations never fail, which would clear the blacklist.
+     */
+    @Setup(Level.Trial)
+    public void fill(BenchmarkParams params) {
+        allocator = new DisplayAllocator();
+        max = MIN + range - 1;
+
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (int n = MIN; n <= max; n++) {
+            numbers.add(n);
+        }
+        Collections.shuffle(numbers, new Random(42));
+
+        int headroom = params.getThreads() * HOLD;
+        int bad = Math.max(0, Math.min(blacklisted, range - headroom));
+        int taken = Math.max(0, Math.min(range * occupancy / 100, range - headroom - bad));
+        Iterator<Integer> it = numbers.iterator();
+        for (int i = 0; i < bad; i++) {
+            allocator.blacklist(it.next());
+        }
+        for (int i = 0; i < taken; i++) {
+            allocator.reserve(it.next());
+        }
+    }
+
+    /**
+     * Allocate and free right away.
+     */
+    @Benchmark
+    public int allocateFree() {
+        int n = allocator.allocate(MIN, max);
+        allocator.free(n);
+        return n;
+    }
+
+    /**
+     * Allocate displays for a build running tests in {@link #HOLD} forks.
+     */
+    @Benchmark
+    public int allocateMany() {
+        int[] numbers = allocator.allocate(MIN, max, null, HOLD);
+        for (int n: numbers) {
+            allocator.free(n);
+        }
+        return numbers[0];
+    }
+
+    /**
+     * Allocate or free at random, so numbers are freed in other order than allocated.
+     */
+    @Benchmark
+    public int mixed(Held held) {
+        if (held.count == HOLD || (held.count > 0 && held.random.nextBoolean())) {
+            int i = held.random.nextInt(held.count);
+            int n = held.numbers[i];
+            held.numbers[i] = held.numbers[--held.count];
+            allocator.free(n);
+            return n;
+        }
+
+        int n = allocator.allocate(MIN, max);
+        held.numbers[held.count++] = n;
+        return n;
+    }
+
+    /**
+     * Numbers allocated by a thread in {@link #mixed}.
+     */
+    @State(Scope.Thread)
+    public static class Held {
+        private final int[] numbers = new int[HOLD];
+        private final Random random = new Random();
+        private int count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : "target/benchmark");
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+
+        List<RunResult> results = new ArrayList<RunResult>();
+        for (String threads: System.getProperty("benchmark.threads", "1,2,4,8,16,32,64").split(",")) {
+            results.addAll(new Runner(new OptionsBuilder()
+                    .include(DisplayAllocatorBenchmark.class.getName() + "\\.")
+                    .threads(Integer.parseInt(threads.trim()))
+                    .build()
+            ).run());
+        }
+
+        File csv = new File(dir, "allocator.csv");
+        PrintStream out = new PrintStream(new FileOutputStream(csv), true, "UTF-8");
+        try {
+            ResultFormatFactory.getInstance(ResultFormatType.CSV, out).writeOut(results);
+        } finally {
+            out.close();
+        }
+        System.out.println("Results written to " + csv);
+
+        String baseline = System.getProperty("benchmark.baseline");
+        if (baseline != null && baseline.trim().length() > 0) {
+            compare(read(new File(baseline.trim())), read(csv));
+        }
+    }
+
+    /**
+     * Print change of every score found in both runs. Higher is better for throughput, lower for sample time.
+     */
+    private static void compare(Map<String, Double> baseline, Map<String, Double> current) {
+        System.out.println("Change against baseline:");
+        for (Map.Entry<String, Double> entry: current.entrySet()) {
+            Double before = baseline.get(entry.getKey());
+            if (before == null || before == 0 || before.isNaN() || entry.getValue().isNaN()) continue;
+
+            System.out.println(String.format("%+8.1f%%  %s", (entry.getValue() - before) * 100 / before, entry.getKey()));
+        }
+    }
+
+    /**
+     * Read JMH CSV results.
+     *
+     * @return Score by benchmark, mode, thread count and parameters.
+     */
+    private static Map<String, Double> read(File csv) throws IOException {
+        Map<String, Double> scores = new LinkedHashMap<String, Double>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(csv), "UTF-8"));
+        try {
+            String line = in.readLine();
+            if (line == null) throw new IOException("No results in " + csv);
+
+            List<String> header = fields(line);
+            int score = header.indexOf("Score");
+            while ((line = in.readLine()) != null) {
+                List<String> fields = fields(line);
+                if (fields.size() != header.size()) continue;
+
+                StringBuilder key = new StringBuilder();
+                for (int i = 0; i < fields.size(); i++) {
+                    String column = header.get(i);
+                    if (column.startsWith("Score") || column.equals("Samples") || column.equals("Unit")) continue;
+
+                    if (key.length() > 0) key.append(' ');
+                    if (column.startsWith("Param: ")) key.append(column.substring(7)).append('=');
+                    key.append(fields.get(i));
+                }
+                try {
+                    scores.put(key.toString(), Double.valueOf(fields.get(score)));
+                } catch (NumberFormatException e) {
+                    // Score not measured
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return scores;
+    }
+
+    private static List<String> fields(String line) {
+        List<String> fields = new ArrayList<String>(Arrays.asList(line.split(",")));
+        for (int i = 0; i < fields.size(); i++) {
+            fields.set(i, fields.get(i).replaceAll("^\"|\"$", ""));
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,50 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.Node;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Display backend for builds running on nodes matching label expression.
+ */
+public class BackendRule extends AbstractDescribableImpl<BackendRule> {
+
+    private final String label;
+    private final DisplayBackend backend;
+
+    @DataBoundConstructor
+    public BackendRule(String label, DisplayBackend backend) {
+        this.label = Util.fixEmptyAndTrim(label);
+        this.backend = backend;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public DisplayBackend getBackend() {
+        return backend;
+    }
+
+    /*package*/ boolean matches(Node node) {
+        if (label == null || backend == null) return false;
+
+        Label expression = Jenkins.getInstance().getLabel(label);
+        return expression != null && expression.contains(node);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<BackendRule> {
+        @Override
+        public String getDisplayName() {
+            return "Display server by label";
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.model.queue.WorkUnit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps builds using Xvnc in the queue until their node has display numbers for all their displays,
+ * and memory for their framebuffers when the node has a {@link DisplayMemoryBudget}.
+ *
+ * Numbers allocated on the node are read from its allocator without a remote call. Builds already
+ * running on the node that have not started their display yet are counted as well, including those
+ * just given an executor that have not even been created. Numbers taken by X servers the plugin does
+ * not know about are only discovered by the build itself.
+ */
+@Extension
+public final class DisplayAdmission extends QueueTaskDispatcher {
+
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        Xvnc xvnc = xvnc(item.task);
+        if (xvnc == null || !xvnc.needsDisplay(node)) return null;
+
+        // Nothing allocated there yet when missing
+        DisplayAllocator.Property property = node.getNodeProperties().get(DisplayAllocator.Property.class);
+        Xvnc.DescriptorImpl config = Jenkins.getInstance().getDescriptorByType(Xvnc.DescriptorImpl.class);
+        List<Xvnc> starting = startingWrappers(node);
+        int idle = property != null && xvnc.usesPool(config, xvnc.getBackend(node)) ? property.getPool().idleCount() : 0;
+
+        int capacity = config.maxDisplayNumber - config.minDisplayNumber + 1;
+        int taken = property == null ? 0 : property.getAllocator().allocatedCount(config.minDisplayNumber, config.maxDisplayNumber);
+        for (Xvnc wrapper: starting) {
+            taken += wrapper.getDisplays();
+        }
+        taken -= idle; // Leased rather than allocated
+        if (taken + xvnc.getDisplays() > capacity) return new NoDisplay(node);
+
+        DisplayMemoryBudget budget = node.getNodeProperties().get(DisplayMemoryBudget.class);
+        if (budget == null || idle > 0) return null; // Pooled display is running already
+
+        long used = property == null ? 0 : property.getAllocator().framebufferUsage(Screen.DEFAULT.getFramebufferSize());
+        for (Xvnc wrapper: starting) {
+            used += wrapper.getDisplays() * wrapper.getFramebufferSize(node);
+        }
+        long needed = xvnc.getDisplays() * xvnc.getFramebufferSize(node);
+        // Displays larger than the whole budget run alone rather than never
+        if (used == 0 || used + needed <= budget.getBytes()) return null;
+        return new NoMemory(node, used, budget);
+    }
+
+    /**
+     * Displays of builds running on the node that have not started them yet.
+     */
+    /*package*/ static int starting(Node node) {
+        int starting = 0;
+        for (Xvnc xvnc: startingWrappers(node)) {
+            starting += xvnc.getDisplays();
+        }
+        return starting;
+    }
+
+    /**
+     * Wrappers of builds running on the node that have not started their displays yet, or were given an
+     * executor and are about to run.
+     */
+    private static List<Xvnc> startingWrappers(Node node) {
+        List<Xvnc> starting = new ArrayList<Xvnc>();
+        Computer computer = node.toComputer();
+        if (computer == null) return starting;
+
+        for (Executor executor: computer.getExecutors()) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable == null) {
+                // Taken earlier in the same queue maintenance, the build does not exist yet
+                WorkUnit unit = executor.getCurrentWorkUnit();
+                Xvnc xvnc = unit == null ? null : xvnc(unit.context.task);
+                if (xvnc != null) {
+                    starting.add(xvnc);
+                }
+            } else if (executable instanceof AbstractBuild) {
+                AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) executable;
+                Xvnc xvnc = xvnc(build.getProject());
+                if (build.isBuilding() && build.getAction(XvncEnvironment.class) == null && xvnc != null) {
+                    starting.add(xvnc);
+                }
+            }
+        }
+        return starting;
+    }
+
+    /**
+     * Only the first wrapper is accounted for. Every other one is started when the display of the first
+     * one already exists, and can fail on its own.
+     */
+    private static Xvnc xvnc(Object task) {
+        if (!(task instanceof BuildableItemWithBuildWrappers)) return null;
+
+        return ((BuildableItemWithBuildWrappers) task).getBuildWrappersList().get(Xvnc.class);
+    }
+
+    private static final class NoDisplay extends CauseOfBlockage {
+        private final Node node;
+
+        private NoDisplay(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return Messages.Xvnc_NO_DISPLAY(node.getDisplayName());
+        }
+    }
+
+    private static final class NoMemory extends CauseOfBlockage {
+        private final Node node;
+        private final long used;
+        private final DisplayMemoryBudget budget;
+
+        private NoMemory(Node node, long used, DisplayMemoryBudget budget) {
+            this.node = node;
+            this.used = used;
+            this.budget = budget;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return Messages.Xvnc_NO_MEMORY(node.getDisplayName(), used / 1024 / 1024, budget.getMegabytes());
+        }
+    }
+}
@@ -5,9 +5,17 @@ import hudson.model.Node;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.NodePropertyDescriptor;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -15,72 +23,456 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 /**
  * Manages the display numbers in use.
  *
+ * Numbers are kept in bitmaps claimed and released by compare-and-set so allocation
+ * never blocks and takes at most one pass over the range.
+ *
+ * Numbers servers have failed to start on are quarantined for {@link #QUARANTINE} seconds, doubled with
+ * every further failure up to {@link #MAX_QUARANTINE}. They come back one by one as their quarantine expires,
+ * or, when nothing else is left, the one expiring first. Numbers back from quarantine are allocated only once
+ * there are no others, until a server starts on them fine.
+ *
  * @author Kohsuke Kawaguchi
  */
 final class DisplayAllocator {
+    /**
+     * Highest display number that can be tracked, exclusive. Display <tt>n</tt> listens on TCP port
+     * <tt>6000 + n</tt> so there can be no more than this.
+     */
+    /*package*/ static final int CAPACITY = 1 << 16;
+
+    /**
+     * Seconds a number is quarantined for after its first failure.
+     */
+    /*package*/ static long QUARANTINE = Long.getLong(DisplayAllocator.class.getName() + ".quarantine", 60);
+
+    /**
+     * Longest quarantine in seconds. Failures are forgotten once a number has not failed for twice as long.
+     */
+    /*package*/ static long MAX_QUARANTINE = Long.getLong(DisplayAllocator.class.getName() + ".maxQuarantine", 3600);
+
     /**
      * Display numbers in use.
      */
-    private final Set<Integer> allocatedNumbers = new HashSet<Integer>();
-    private final Set<Integer> blacklistedNumbers = new HashSet<Integer>();
+    private final AtomicLongArray allocatedNumbers = new AtomicLongArray(CAPACITY / Long.SIZE);
+    /**
+     * Display numbers in quarantine.
+     */
+    private final AtomicLongArray blacklistedNumbers = new AtomicLongArray(CAPACITY / Long.SIZE);
+    /**
+     * Display numbers back from quarantine that no server has started on fine since.
+     */
+    private final AtomicLongArray probationNumbers = new AtomicLongArray(CAPACITY / Long.SIZE);
+
+    /**
+     * Failures by number. Guards itself and its values.
+     */
+    private final Map<Integer, Failures> failures = new HashMap<Integer, Failures>();
+
+    /**
+     * Time the first quarantine expires, checked by allocations without locking.
+     */
+    private volatile long nextRecovery = Long.MAX_VALUE;
+
+    /**
+     * Spread allocations over the range so stale locks of one display are not hit by every build.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Framebuffer bytes of servers started on allocated numbers, when known. Forgotten once the number is freed.
+     */
+    private final ConcurrentMap<Integer, Long> framebuffers = new ConcurrentHashMap<Integer, Long>();
 
     public DisplayAllocator() {
     }
 
-    private int getRandomValue(final int min, final int max) {
-        return min + (new Random().nextInt(getRange(min, max)));
+    public int allocate(final int minDisplayNumber, final int maxDisplayNumber) {
+        return allocate(minDisplayNumber, maxDisplayNumber, null);
+    }
+
+    /**
+     * @param available Numbers known to be free on the host, or null to consider all of them.
+     */
+    public int allocate(final int minDisplayNumber, final int maxDisplayNumber, final BitSet available) {
+        if (minDisplayNumber < 0 || maxDisplayNumber >= CAPACITY || minDisplayNumber > maxDisplayNumber) {
+            throw new IllegalArgumentException("Invalid display number range " + minDisplayNumber + "-" + maxDisplayNumber);
+        }
+
+        if (System.currentTimeMillis() >= nextRecovery) {
+            recoverExpired();
+        }
+        for (;;) {
+            int start = minDisplayNumber + random.nextInt(maxDisplayNumber - minDisplayNumber + 1);
+            int displayNumber = claim(start, maxDisplayNumber, available, true);
+            if (displayNumber < 0) {
+                displayNumber = claim(minDisplayNumber, start - 1, available, true);
+            }
+            if (displayNumber < 0) {
+                displayNumber = claim(start, maxDisplayNumber, available, false);
+            }
+            if (displayNumber < 0) {
+                displayNumber = claim(minDisplayNumber, start - 1, available, false);
+            }
+            if (displayNumber >= 0) {
+                XvncMetrics.ALLOCATIONS.inc();
+                return displayNumber;
+            }
+
+            if (!recoverFirst(minDisplayNumber, maxDisplayNumber, available)) {
+                XvncMetrics.ALLOCATION_FAILURES.inc();
+                String message = "All available display numbers are allocated or " +
+                        "blacklisted.\nallocated: " + numbers(allocatedNumbers) +
+                        "\nblacklisted: " + numbers(blacklistedNumbers);
+                if (available != null) {
+                    message += "\nfree on host: " + available;
+                }
+                throw new RuntimeException(message);
+            }
+        }
     }
 
-    private int getRange(final int min, final int max) {
-        return (max + 1) - min;
+    /**
+     * Allocate count numbers, or none of them.
+     *
+     * @throws RuntimeException When there are not enough numbers. Numbers claimed so far are released.
+     */
+    public int[] allocate(final int minDisplayNumber, final int maxDisplayNumber, final BitSet available, final int count) {
+        final int[] displayNumbers = new int[count];
+        for (int i = 0; i < count; i++) {
+            try {
+                displayNumbers[i] = allocate(minDisplayNumber, maxDisplayNumber, available);
+            } catch (RuntimeException e) {
+                for (int j = 0; j < i; j++) {
+                    free(displayNumbers[j]);
+                }
+                throw e;
+            }
+        }
+        return displayNumbers;
     }
 
-    public synchronized int allocate(final int minDisplayNumber, final int maxDisplayNumber) {
-        if (noDisplayNumbersLeft(minDisplayNumber, maxDisplayNumber)) {
-            if (!blacklistedNumbers.isEmpty()) {
-                blacklistedNumbers.clear();
-            } else {
-                throw new RuntimeException("All available display numbers are allocated or " +
-                        "blacklisted.\nallocated: " + allocatedNumbers.toString() +
-                        "\nblacklisted: " + blacklistedNumbers.toString());
+    /**
+     * Claim the lowest number from [from, to] that is neither allocated nor blacklisted.
+     *
+     * @param healthy Skip numbers on probation.
+     * @return Claimed number or -1 if there is none.
+     */
+    private int claim(final int from, final int to, final BitSet available, final boolean healthy) {
+        if (from > to) return -1;
+
+        int probes = 0;
+        for (int word = from / Long.SIZE; word <= to / Long.SIZE; word++) {
+            final int base = word * Long.SIZE;
+            long mask = (-1L << (Math.max(from, base) - base)) & (-1L >>> (Long.SIZE - 1 - (Math.min(to, base + Long.SIZE - 1) - base)));
+            if (available != null) {
+                mask &= word(available, word);
+            }
+            for (;;) {
+                probes++;
+                final long allocated = allocatedNumbers.get(word);
+                final long unused = ~(allocated | blacklistedNumbers.get(word) | (healthy ? probationNumbers.get(word) : 0)) & mask;
+                if (unused == 0) break;
+
+                final long bit = Long.lowestOneBit(unused);
+                if (allocatedNumbers.compareAndSet(word, allocated, allocated | bit)) {
+                    XvncMetrics.ALLOCATION_PROBES.add(probes);
+                    return base + Long.numberOfTrailingZeros(bit);
+                }
             }
         }
-        int displayNumber;
-        do {
-            displayNumber = getRandomValue(minDisplayNumber, maxDisplayNumber);
-        } while(isNotAvailable(displayNumber));
-        allocatedNumbers.add(displayNumber);
-        return displayNumber;
+        XvncMetrics.ALLOCATION_PROBES.add(probes);
+        return -1;
+    }
+
+    /**
+     * Mark number allocated regardless of its state, as it is known to be in use.
+     */
+    public void reserve(int n) {
+        set(allocatedNumbers, n);
     }
 
-    private boolean isNotAvailable(int number) {
-        return allocatedNumbers.contains(number) || blacklistedNumbers.contains(number);
+    public void free(int n) {
+        framebuffers.remove(n);
+        unset(allocatedNumbers, n);
     }
 
-    private boolean noDisplayNumbersLeft(final int min, final int max) {
-        return allocatedNumbers.size() + blacklistedNumbers.size() >= getRange(min, max);
+    /**
+     * Record framebuffer size of the server started on allocated number.
+     */
+    public void setFramebufferSize(int n, long bytes) {
+        framebuffers.put(n, bytes);
     }
 
-    public synchronized void free(int n) {
-        allocatedNumbers.remove(n);
+    /**
+     * Framebuffer bytes of servers on allocated numbers.
+     *
+     * @param defaultSize Size of servers not recorded, like pooled ones.
+     */
+    public long framebufferUsage(long defaultSize) {
+        long usage = 0;
+        for (int n: allocated()) {
+            Long size = framebuffers.get(n);
+            usage += size == null ? defaultSize : size;
+        }
+        return usage;
     }
 
+    /**
+     * Quarantine number a server has failed to start on.
+     */
     public void blacklist(int badDisplay) {
+        XvncMetrics.BLACKLISTED.inc();
+        // Claims read the allocated word before the blacklisted one, so none sees the number free and not quarantined
+        quarantine(badDisplay, true);
         free(badDisplay);
-        blacklistedNumbers.add(badDisplay);
+    }
+
+    /**
+     * Restart quarantine of number found still in use after a failure, without counting another failure.
+     */
+    public void prolong(int n) {
+        quarantine(n, false);
+    }
+
+    private void quarantine(int n, boolean failed) {
+        long now = System.currentTimeMillis();
+        synchronized (failures) {
+            Failures f = failures.get(n);
+            if (f == null || now - f.last > 2 * MAX_QUARANTINE * 1000) {
+                f = new Failures();
+                failures.put(n, f);
+            }
+            if (failed || f.count == 0) {
+                f.count++;
+            }
+            f.last = now;
+            f.until = now + Math.min(QUARANTINE << Math.min(f.count - 1, 30), MAX_QUARANTINE) * 1000;
+            f.quarantined = true;
+            unset(probationNumbers, n);
+            set(blacklistedNumbers, n);
+            nextRecovery = Math.min(nextRecovery, f.until);
+        }
+    }
+
+    /**
+     * Server has started fine on the number, it is no longer on probation.
+     */
+    public void healthy(int n) {
+        unset(probationNumbers, n);
+    }
+
+    /**
+     * Numbers in quarantine, in ascending order.
+     */
+    public List<Integer> quarantined() {
+        return numbers(blacklistedNumbers);
+    }
+
+    /**
+     * @return Time quarantine of the number expires, or 0 if it is not quarantined.
+     */
+    /*package*/ long quarantinedUntil(int n) {
+        synchronized (failures) {
+            Failures f = failures.get(n);
+            return f == null || !f.quarantined ? 0 : f.until;
+        }
+    }
+
+    /**
+     * Put numbers whose quarantine has expired on probation and forget old failures.
+     */
+    private void recoverExpired() {
+        long now = System.currentTimeMillis();
+        synchronized (failures) {
+            long next = Long.MAX_VALUE;
+            for (Iterator<Map.Entry<Integer, Failures>> it = failures.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Integer, Failures> entry = it.next();
+                Failures f = entry.getValue();
+                if (f.quarantined && f.until <= now) {
+                    recover(entry.getKey(), f);
+                }
+                if (f.quarantined) {
+                    next = Math.min(next, f.until);
+                } else if (now - f.last > 2 * MAX_QUARANTINE * 1000) {
+                    it.remove();
+                }
+            }
+            nextRecovery = next;
+        }
+    }
+
+    /**
+     * Recover the number from [min, max] whose quarantine expires first, as there is nothing else to allocate.
+     *
+     * @return false if there is none.
+     */
+    private boolean recoverFirst(int min, int max, BitSet available) {
+        synchronized (failures) {
+            int first = -1;
+            Failures firstFailures = null;
+            for (Map.Entry<Integer, Failures> entry: failures.entrySet()) {
+                int n = entry.getKey();
+                Failures f = entry.getValue();
+                if (!f.quarantined || n < min || n > max || (available != null && !available.get(n))) continue;
+
+                if (firstFailures == null || f.until < firstFailures.until) {
+                    first = n;
+                    firstFailures = f;
+                }
+            }
+            if (firstFailures == null) return false;
+
+            recover(first, firstFailures);
+            return true;
+        }
+    }
+
+    private void recover(int n, Failures f) {
+        f.quarantined = false;
+        set(probationNumbers, n);
+        unset(blacklistedNumbers, n);
+    }
+
+    private static final class Failures {
+        /**
+         * Failures since the number was last forgotten.
+         */
+        private int count;
+        private long last;
+        private long until;
+        private boolean quarantined;
+    }
+
+    /**
+     * Number of displays allocated. Reads the bitmap without synchronization, so it may be slightly off
+     * while allocations are in progress.
+     */
+    public int allocatedCount() {
+        return allocatedCount(0, CAPACITY - 1);
+    }
+
+    /**
+     * Number of displays allocated from [min, max].
+     */
+    public int allocatedCount(int min, int max) {
+        int count = 0;
+        for (int n = Math.max(0, min); n <= Math.min(max, CAPACITY - 1); n = (n / Long.SIZE + 1) * Long.SIZE) {
+            final int base = n / Long.SIZE * Long.SIZE;
+            long mask = (-1L << (n - base)) & (-1L >>> (Long.SIZE - 1 - (Math.min(max, base + Long.SIZE - 1) - base)));
+            count += Long.bitCount(allocatedNumbers.get(n / Long.SIZE) & mask);
+        }
+        return count;
+    }
+
+    /**
+     * Numbers allocated, in ascending order.
+     */
+    public List<Integer> allocated() {
+        return numbers(allocatedNumbers);
+    }
+
+    private static void set(AtomicLongArray bitmap, int n) {
+        final int word = n / Long.SIZE;
+        final long bit = 1L << (n % Long.SIZE);
+        for (;;) {
+            final long current = bitmap.get(word);
+            if ((current & bit) != 0 || bitmap.compareAndSet(word, current, current | bit)) return;
+        }
+    }
+
+    private static void unset(AtomicLongArray bitmap, int n) {
+        final int word = n / Long.SIZE;
+        final long bit = 1L << (n % Long.SIZE);
+        for (;;) {
+            final long current = bitmap.get(word);
+            if ((current & bit) == 0 || bitmap.compareAndSet(word, current, current & ~bit)) return;
+        }
+    }
+
+    private static long word(BitSet bits, int word) {
+        final int base = word * Long.SIZE;
+        long value = 0;
+        for (int n = bits.nextSetBit(base); n >= 0 && n < base + Long.SIZE; n = bits.nextSetBit(n + 1)) {
+            value |= 1L << (n - base);
+        }
+        return value;
+    }
+
+    private static List<Integer> numbers(AtomicLongArray bitmap) {
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (int word = 0; word < bitmap.length(); word++) {
+            long bits = bitmap.get(word);
+            while (bits != 0) {
+                numbers.add(word * Long.SIZE + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+        return numbers;
     }
 
     @Restricted(NoExternalUse.class)
     /*package*/ static final class Property extends NodeProperty<Node> {
 
         private transient /*final*/ DisplayAllocator allocator = new DisplayAllocator();
+        private transient /*final*/ DisplayPool pool = new DisplayPool(allocator);
+        private transient /*final*/ DisplayTeardown teardown = new DisplayTeardown();
+        private transient /*final*/ StartupHistory startups = new StartupHistory();
+        private transient /*final*/ LiveView.Throttle liveView = new LiveView.Throttle();
+        /**
+         * Remote paths of files builds have left behind while the node was offline.
+         */
+        private transient /*final*/ List<String> leftovers = new ArrayList<String>();
 
         /*package*/ DisplayAllocator getAllocator() {
             return allocator;
         }
 
+        /*package*/ DisplayPool getPool() {
+            return pool;
+        }
+
+        /*package*/ DisplayTeardown getTeardown() {
+            return teardown;
+        }
+
+        /*package*/ StartupHistory getStartups() {
+            return startups;
+        }
+
+        /*package*/ LiveView.Throttle getLiveView() {
+            return liveView;
+        }
+
+        /*package*/ void leftBehind(String path) {
+            synchronized (leftovers) {
+                leftovers.add(path);
+            }
+        }
+
+        /*package*/ List<String> takeLeftovers() {
+            synchronized (leftovers) {
+                List<String> ret = new ArrayList<String>(leftovers);
+                leftovers.clear();
+                return ret;
+            }
+        }
+
+        /*package*/ static Property of(Node node) throws IOException {
+            Property property = node.getNodeProperties().get(Property.class);
+            if (property == null) {
+                property = new Property();
+                node.getNodeProperties().add(property);
+            }
+            return property;
+        }
+
         private Object readResolve() {
             allocator = new DisplayAllocator();
+            pool = new DisplayPool(allocator);
+            teardown = new DisplayTeardown();
+            startups = new StartupHistory();
+            liveView = new LiveView.Throttle();
+            leftovers = new ArrayList<String>();
             return this;
         }
 
@@ -0,0 +1,86 @@
+package hudson.plugins.xvnc;
+
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * X server started for builds.
+ *
+ * Backend defines how the server is started, how to tell it is ready, how its screen is read and how
+ * it is stopped. It is chosen by the job, or by label of the node the build runs on; {@link XvncBackend}
+ * is used otherwise.
+ */
+public abstract class DisplayBackend extends AbstractDescribableImpl<DisplayBackend> implements ExtensionPoint {
+
+    /**
+     * Command line starting the server. <tt>$DISPLAY_NUMBER</tt> is replaced by the display number.
+     */
+    public abstract String getCommandline();
+
+    /**
+     * Command line starting the server with the screen requested by the job.
+     *
+     * @return The command line, or {@link #getCommandline()} when the backend can not set the screen.
+     */
+    public String getCommandline(Screen screen) {
+        return getCommandline();
+    }
+
+    /**
+     * Screen of the server started by {@link #getCommandline()}.
+     */
+    public Screen getDefaultScreen() {
+        return Screen.DEFAULT;
+    }
+
+    /**
+     * Wrapper that has started the server in background and stops it by <tt>-kill :&lt;n&gt;</tt>.
+     *
+     * @param cmd Command line as returned by {@link #getCommandline()}.
+     * @param cmds Command expanded for the display.
+     * @return The wrapper, or null when the launched process is the server itself and is stopped by killing it.
+     */
+    public String getStopCommand(String cmd, String[] cmds) {
+        return null;
+    }
+
+    /**
+     * Prepare the node for the server to start.
+     */
+    public void prepare(VirtualChannel channel, int displayNumber) throws IOException, InterruptedException {
+    }
+
+    /**
+     * Remove what the server has left behind once it is gone.
+     */
+    public void cleanUp(VirtualChannel channel, int displayNumber) throws IOException, InterruptedException {
+    }
+
+    /**
+     * Wait for the server to accept connections and read its pid, in a single call to the node.
+     *
+     * @param timeoutMillis Time to wait, or 0 not to wait at all.
+     * @return Milliseconds waited, -1 when the server is not ready in time, and pid of the server or -1 when unknown.
+     */
+    public DisplayReadiness.Started awaitReady(VirtualChannel channel, int displayNumber, long timeoutMillis) throws IOException, InterruptedException {
+        return DisplayReadiness.awaitStarted(channel, displayNumber, timeoutMillis);
+    }
+
+    /**
+     * Callable writing JPEG screenshot of the display to out. It is run in the node JVM as a part of the teardown.
+     *
+     * @return The callable, or null when the screen can not be read by the backend. ImageMagick <tt>import</tt> is used instead.
+     */
+    public Callable<Void, IOException> capture(int displayNumber, OutputStream out) {
+        return null;
+    }
+
+    public static abstract class BackendDescriptor extends Descriptor<DisplayBackend> {
+    }
+}
@@ -0,0 +1,48 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import hudson.util.FormValidation;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Memory framebuffers of displays can take on the node.
+ *
+ * Builds wait in the queue by {@link DisplayAdmission} while their displays do not fit.
+ */
+public class DisplayMemoryBudget extends NodeProperty<Node> {
+
+    /**
+     * Megabytes of framebuffer memory.
+     */
+    private final int megabytes;
+
+    @DataBoundConstructor
+    public DisplayMemoryBudget(int megabytes) {
+        this.megabytes = megabytes;
+    }
+
+    public int getMegabytes() {
+        return megabytes;
+    }
+
+    /*package*/ long getBytes() {
+        return megabytes * 1024L * 1024L;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends NodePropertyDescriptor {
+        @Override
+        public String getDisplayName() {
+            return "Limit memory of Xvnc displays on this node";
+        }
+
+        public FormValidation doCheckMegabytes(@QueryParameter int value) {
+            return value > 0 ? FormValidation.ok() : FormValidation.error("Expected a positive number of megabytes");
+        }
+    }
+}
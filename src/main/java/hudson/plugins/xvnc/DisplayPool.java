@@ -0,0 +1,489 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import hudson.util.LogTaskListener;
+import hudson.util.ProcessTree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+/**
+ * Idle, already running X servers of a single node that are handed out to builds.
+ *
+ * Servers are started in the background up to {@link Xvnc.DescriptorImpl#poolSize}, leased by
+ * {@link Xvnc#setUp} once confirmed running, and returned after the build once its X clients have been
+ * killed and the cookie in its Xauthority copy replaced by a new one. Servers are retired after {@link Xvnc.DescriptorImpl#poolMaxUses} leases or
+ * {@link Xvnc.DescriptorImpl#poolMaxAge} minutes.
+ */
+final class DisplayPool {
+
+    private static final Logger LOGGER = Logger.getLogger(DisplayPool.class.getName());
+
+    private final DisplayAllocator allocator;
+
+    /**
+     * Running servers nobody holds a lease on, oldest first.
+     */
+    private final LinkedList<PooledDisplay> idle = new LinkedList<PooledDisplay>();
+
+    /**
+     * Servers being launched by {@link #topUp}.
+     */
+    private int starting = 0;
+
+    /*package*/ DisplayPool(DisplayAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Take an idle display that is still running, or null if there is none. The pool is topped up in the
+     * background.
+     */
+    public PooledDisplay lease(Node node, Xvnc.DescriptorImpl config, VirtualChannel channel) throws IOException, InterruptedException {
+        PooledDisplay display = null;
+        while (display == null) {
+            PooledDisplay candidate;
+            synchronized (this) {
+                if (idle.isEmpty()) break;
+                candidate = idle.removeFirst();
+            }
+            if (candidate.isExpired(config)) {
+                retireLater(node, candidate);
+                continue;
+            }
+
+            BitSet number = new BitSet();
+            number.set(candidate.displayNumber);
+            try {
+                if (DisplayScanner.running(channel, number).get(candidate.displayNumber)) {
+                    display = candidate;
+                } else {
+                    LOGGER.log(Level.INFO, "Pooled display :{0} on {1} is gone", new Object[] {candidate.displayNumber, node.getDisplayName()});
+                    retireLater(node, candidate);
+                }
+            } catch (IOException e) {
+                retireLater(node, candidate);
+                throw e;
+            }
+        }
+        if (display != null) {
+            display.uses++;
+        }
+        scheduleTopUp(node, config);
+        return display;
+    }
+
+    /**
+     * Reset display after the build and put it back to the pool, or retire it when it is worn out.
+     *
+     * @param buildXauthority Xauthority copy handed to the build.
+     */
+    public void release(Node node, Xvnc.DescriptorImpl config, PooledDisplay display, FilePath buildXauthority, TaskListener listener) throws IOException, InterruptedException {
+        boolean reusable = config.poolSize > 0 && !display.isWornOut(config);
+        try {
+            VirtualChannel channel = buildXauthority.getChannel();
+            channel.call(new KillClients(":" + display.displayNumber, buildXauthority.getRemote()));
+            if (reusable && !channel.call(new ReplaceCookie(display.displayNumber, display.xauthority.getRemote(), buildXauthority.getRemote()))) {
+                listener.getLogger().println("Pooled display :" + display.displayNumber + " still accepts the cookie of the build, retiring it");
+                reusable = false;
+            }
+            buildXauthority.delete();
+        } catch (IOException e) {
+            e.printStackTrace(listener.getLogger());
+            reusable = false;
+        }
+
+        if (reusable) {
+            LeaseJournal.get().acquired(node, display.displayNumber, "", display.pid);
+            synchronized (this) {
+                idle.addLast(display);
+            }
+        } else {
+            retire(node, display, listener);
+        }
+        scheduleTopUp(node, config);
+    }
+
+    /**
+     * Forget all displays, the node they were running on is gone.
+     */
+    public void discard(Node node) {
+        List<PooledDisplay> discarded;
+        synchronized (this) {
+            discarded = new ArrayList<PooledDisplay>(idle);
+            idle.clear();
+        }
+        for (PooledDisplay display: discarded) {
+            allocator.free(display.displayNumber);
+            LeaseJournal.get().released(node, display.displayNumber);
+        }
+    }
+
+    /*package*/ synchronized int idleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Whether servers are being launched; their numbers are allocated but not journaled yet.
+     */
+    /*package*/ synchronized boolean isStarting() {
+        return starting > 0;
+    }
+
+    private void scheduleTopUp(final Node node, final Xvnc.DescriptorImpl config) {
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                try {
+                    topUp(node, config);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to top up Xvnc display pool on " + node.getDisplayName(), e);
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.WARNING, "Interrupted topping up Xvnc display pool on " + node.getDisplayName(), e);
+                }
+            }
+        });
+    }
+
+    private void topUp(Node node, Xvnc.DescriptorImpl config) throws IOException, InterruptedException {
+        List<PooledDisplay> expired = new ArrayList<PooledDisplay>();
+        int missing;
+        synchronized (this) {
+            for (Iterator<PooledDisplay> it = idle.iterator(); it.hasNext();) {
+                PooledDisplay display = it.next();
+                if (display.isExpired(config)) {
+                    it.remove();
+                    expired.add(display);
+                }
+            }
+            missing = config.poolSize - idle.size() - starting;
+            if (missing > 0) {
+                starting += missing;
+            }
+        }
+
+        TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+        for (PooledDisplay display: expired) {
+            retire(node, display, listener);
+        }
+
+        int started = 0;
+        try {
+            for (; started < missing; started++) {
+                PooledDisplay display = start(node, config, listener);
+                if (display == null) break; // Do not hammer the node; try again with the next lease
+                synchronized (this) {
+                    starting--;
+                    idle.addLast(display);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                starting -= missing - started;
+            }
+        }
+    }
+
+    private PooledDisplay start(Node node, Xvnc.DescriptorImpl config, TaskListener listener) throws IOException, InterruptedException {
+        FilePath root = node.getRootPath();
+        if (root == null) return null; // offline
+
+        final String hostLeases = config.getHostLeaseDirectory();
+        final int displayNumber;
+        try {
+            BitSet free = DisplayScanner.free(root.getChannel(), config.minDisplayNumber, config.maxDisplayNumber);
+            displayNumber = hostLeases == null
+                    ? allocator.allocate(config.minDisplayNumber, config.maxDisplayNumber, free)
+                    : HostLeases.allocate(root.getChannel(), hostLeases, allocator, config.minDisplayNumber, config.maxDisplayNumber, free, 1)[0];
+        } catch (RuntimeException e) {
+            listener.getLogger().println(e.getMessage());
+            return null;
+        }
+        try {
+            return start(node, root, config, displayNumber, listener);
+        } finally {
+            if (hostLeases != null) {
+                HostLeases.release(root.getChannel(), hostLeases, displayNumber);
+            }
+        }
+    }
+
+    private PooledDisplay start(Node node, FilePath root, Xvnc.DescriptorImpl config, int displayNumber, TaskListener listener)
+            throws IOException, InterruptedException {
+        final String cmd = config.getEffectiveCommandline();
+        final String[] cmds = Xvnc.expandCommand(cmd, displayNumber);
+
+        FilePath dir = root.child("xvnc");
+        dir.mkdirs();
+        FilePath xauthority = dir.createTempFile(".Xauthority-pool-", "");
+        Map<String, String> xauthorityEnv = Collections.singletonMap("XAUTHORITY", xauthority.getRemote());
+
+        ServerLog.Launched proc = ServerLog.launch(root.createLauncher(listener), displayNumber, cmds, xauthorityEnv, dir.getRemote());
+        String vncserverCommand = null;
+        if (Xvnc.isVncserverWrapper(cmd, cmds)) {
+            vncserverCommand = cmds[0];
+            int exit = proc.join();
+            if (exit != 0) {
+                listener.getLogger().println("Failed to start pooled display :" + displayNumber + " (exit code " + exit + ")");
+                close(root.getChannel(), displayNumber, proc, listener);
+                allocator.blacklist(displayNumber);
+                xauthority.delete();
+                return null;
+            }
+        }
+
+        if (config.readinessTimeout > 0) {
+            long ready = DisplayReadiness.await(root.getChannel(), displayNumber, config.readinessTimeout * 1000L);
+            if (ready < 0) {
+                listener.getLogger().println("Pooled display :" + displayNumber + " not ready in " + config.readinessTimeout + " seconds");
+                PooledDisplay display = new PooledDisplay(displayNumber, vncserverCommand, proc, xauthority, -1);
+                try {
+                    retire(node, display, listener);
+                } finally {
+                    allocator.blacklist(displayNumber);
+                }
+                return null;
+            }
+        }
+
+        allocator.healthy(displayNumber);
+        int pid = DisplayScanner.pid(root.getChannel(), displayNumber);
+        LeaseJournal.get().acquired(node, displayNumber, "", pid);
+        return new PooledDisplay(displayNumber, vncserverCommand, proc, xauthority, pid);
+    }
+
+    private void retireLater(final Node node, final PooledDisplay display) {
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                try {
+                    retire(node, display, new LogTaskListener(LOGGER, Level.FINE));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to stop pooled display :" + display.displayNumber, e);
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.WARNING, "Interrupted stopping pooled display :" + display.displayNumber, e);
+                }
+            }
+        });
+    }
+
+    private void retire(Node node, PooledDisplay display, TaskListener listener) throws IOException, InterruptedException {
+        FilePath root = node.getRootPath();
+        try {
+            if (display.vncserverCommand != null) {
+                if (root != null) {
+                    ServerLog.Launched kill = ServerLog.launch(root.createLauncher(listener), display.displayNumber,
+                            new String[] {display.vncserverCommand, "-kill", ":" + display.displayNumber},
+                            display.xauthorityEnv(), root.child("xvnc").getRemote());
+                    try {
+                        kill.join();
+                    } finally {
+                        close(root.getChannel(), display.displayNumber, kill, listener);
+                    }
+                }
+            } else {
+                display.proc.kill();
+            }
+            display.xauthority.delete();
+        } finally {
+            try {
+                if (root != null) {
+                    close(root.getChannel(), display.displayNumber, display.proc, listener);
+                }
+            } finally {
+                allocator.free(display.displayNumber);
+                LeaseJournal.get().released(node, display.displayNumber);
+            }
+        }
+    }
+
+    /**
+     * Close log of the process on the node, printing its last lines.
+     */
+    private static void close(VirtualChannel channel, int displayNumber, ServerLog.Launched proc, TaskListener listener)
+            throws IOException, InterruptedException {
+        String tail = channel.call(ServerLog.close(proc.getLog(), null));
+        if (tail.length() > 0) {
+            listener.getLogger().println("Output of pooled display :" + displayNumber);
+            listener.getLogger().print(tail);
+        }
+    }
+
+    /**
+     * Running server owned by the pool.
+     */
+    /*package*/ static final class PooledDisplay {
+        /*package*/ final int displayNumber;
+        /*package*/ final String vncserverCommand;
+        /*package*/ final ServerLog.Launched proc;
+        /**
+         * Xauthority file the server was started with. Builds get a copy of it.
+         */
+        /*package*/ final FilePath xauthority;
+        /*package*/ final int pid;
+        private final long startedAt = System.currentTimeMillis();
+        private volatile int uses = 0;
+
+        private PooledDisplay(int displayNumber, String vncserverCommand, ServerLog.Launched proc, FilePath xauthority, int pid) {
+            this.displayNumber = displayNumber;
+            this.vncserverCommand = vncserverCommand;
+            this.proc = proc;
+            this.xauthority = xauthority;
+            this.pid = pid;
+        }
+
+        private Map<String, String> xauthorityEnv() {
+            return Collections.singletonMap("XAUTHORITY", xauthority.getRemote());
+        }
+
+        private boolean isExpired(Xvnc.DescriptorImpl config) {
+            return config.poolMaxAge > 0 && System.currentTimeMillis() - startedAt > config.poolMaxAge * 60L * 1000L;
+        }
+
+        private boolean isWornOut(Xvnc.DescriptorImpl config) {
+            return (config.poolMaxUses > 0 && uses >= config.poolMaxUses) || isExpired(config);
+        }
+    }
+
+    /**
+     * Kill processes left behind by the build on the display it has leased.
+     *
+     * Build processes are recognised by their <tt>XAUTHORITY</tt> being the build's private copy.
+     */
+    private static final class KillClients implements Callable<Void, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, String> modelEnvVars = new HashMap<String, String>();
+
+        private KillClients(String display, String xauthority) {
+            modelEnvVars.put("DISPLAY", display);
+            modelEnvVars.put("XAUTHORITY", Util.fixNull(xauthority));
+        }
+
+        public Void call() throws IOException {
+            try {
+                ProcessTree.get().killAll(modelEnvVars);
+            } catch (InterruptedException e) {
+                throw (IOException) new IOException("Interrupted killing X clients").initCause(e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Replace the cookie of the display in the Xauthority file of the pool with a new one, so the copy the
+     * build got no longer lets anybody in.
+     *
+     * The server reads its Xauthority file when it resets, which it does once its last client goes away.
+     * Connecting with the old cookie after the file is rewritten makes it reset; the display can be reused
+     * only once the old cookie is refused and the new one accepted. Servers started without cookies are
+     * left alone.
+     */
+    private static final class ReplaceCookie implements Callable<Boolean, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private static final int ATTEMPTS = 10;
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        private final int displayNumber;
+        private final String xauthority;
+        private final String buildXauthority;
+
+        private ReplaceCookie(int displayNumber, String xauthority, String buildXauthority) {
+            this.displayNumber = displayNumber;
+            this.xauthority = xauthority;
+            this.buildXauthority = buildXauthority;
+        }
+
+        public Boolean call() throws IOException {
+            if (new File(xauthority).length() == 0) return true; // Nothing to replace
+
+            try {
+                for (String entry: xauth("list")) {
+                    xauth("remove", entry.trim().split("\\s+")[0]);
+                }
+                byte[] cookie = new byte[16];
+                RANDOM.nextBytes(cookie);
+                xauth("add", ":" + displayNumber, ".", Util.toHexString(cookie));
+
+                // Clients killed a moment ago may still be connected, the server resets after them
+                for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                    if (!connect(buildXauthority)) return connect(xauthority);
+                    Thread.sleep(100);
+                }
+                return false;
+            } catch (InterruptedException e) {
+                throw (IOException) new IOException("Interrupted replacing cookie of display :" + displayNumber).initCause(e);
+            }
+        }
+
+        private List<String> xauth(String... args) throws IOException, InterruptedException {
+            List<String> cmds = new ArrayList<String>(Arrays.asList("xauth", "-f", xauthority));
+            cmds.addAll(Arrays.asList(args));
+            List<String> output = new ArrayList<String>();
+            if (run(cmds, null, output) != 0) throw new IOException("'xauth " + args[0] + "' failed: " + output);
+            return output;
+        }
+
+        private boolean connect(String xauthority) throws IOException, InterruptedException {
+            return run(Arrays.asList("xset", "-display", ":" + displayNumber, "q"), xauthority, new ArrayList<String>()) == 0;
+        }
+
+        private static int run(List<String> cmds, String xauthority, List<String> output) throws IOException, InterruptedException {
+            ProcessBuilder builder = new ProcessBuilder(cmds).redirectErrorStream(true);
+            if (xauthority != null) {
+                builder.environment().put("XAUTHORITY", xauthority);
+            }
+            Process process = builder.start();
+            process.getOutputStream().close();
+            BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            try {
+                for (String line; (line = out.readLine()) != null;) {
+                    output.add(line);
+                }
+            } finally {
+                out.close();
+            }
+            return process.waitFor();
+        }
+    }
+
+    /**
+     * Servers of disconnected node are gone, release their numbers.
+     */
+    @Extension
+    public static final class OfflineListener extends ComputerListener {
+        @Override
+        public void onOffline(Computer c) {
+            Node node = c.getNode();
+            if (node == null) return;
+
+            DisplayAllocator.Property property = node.getNodeProperties().get(DisplayAllocator.Property.class);
+            if (property != null) {
+                property.getPool().discard(node);
+            }
+        }
+    }
+}
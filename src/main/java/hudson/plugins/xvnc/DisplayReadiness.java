@@ -0,0 +1,152 @@
+package hudson.plugins.xvnc;
+
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.BitSet;
+
+/**
+ * Waits on the node until X server accepts connections.
+ *
+ * The server creates its unix domain socket <tt>/tmp/.X11-unix/X&lt;n&gt;</tt> once it is listening,
+ * so the probe polls for it with exponential backoff instead of trusting the launcher exit code.
+ */
+final class DisplayReadiness {
+
+    private static final long INITIAL_DELAY = 5;
+    private static final long MAX_DELAY = 200;
+
+    private DisplayReadiness() {}
+
+    /**
+     * @return Milliseconds it took the display to get ready, or -1 when it did not within the timeout.
+     */
+    public static long await(VirtualChannel channel, int displayNumber, long timeoutMillis) throws IOException, InterruptedException {
+        return channel.call(new Probe(displayNumber, timeoutMillis));
+    }
+
+    /**
+     * Wait for the display and read pid of its server in a single call.
+     *
+     * @param timeoutMillis Time to wait, or 0 not to wait at all.
+     */
+    public static Started awaitStarted(VirtualChannel channel, int displayNumber, long timeoutMillis) throws IOException, InterruptedException {
+        return channel.call(new Start(displayNumber, timeoutMillis));
+    }
+
+    /**
+     * Wait until count of the displays are ready.
+     *
+     * @return Displays ready once there are count of them, or once the timeout has passed.
+     */
+    public static BitSet awaitAny(VirtualChannel channel, int[] displayNumbers, int count, long timeoutMillis) throws IOException, InterruptedException {
+        return channel.call(new ProbeAny(displayNumbers, count, timeoutMillis));
+    }
+
+    /*package*/ static File socket(int displayNumber) {
+        return new File("/tmp/.X11-unix/X" + displayNumber);
+    }
+
+    public static final class Started implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Milliseconds it took the display to get ready, or -1 when it did not within the timeout.
+         */
+        public final long ready;
+        /**
+         * Pid of the server as recorded in its lock file, or -1 if unknown.
+         */
+        public final int pid;
+
+        private Started(long ready, int pid) {
+            this.ready = ready;
+            this.pid = pid;
+        }
+    }
+
+    private static final class Start implements Callable<Started, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int displayNumber;
+        private final long timeoutMillis;
+
+        private Start(int displayNumber, long timeoutMillis) {
+            this.displayNumber = displayNumber;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public Started call() throws IOException {
+            long ready = timeoutMillis > 0 ? new Probe(displayNumber, timeoutMillis).call() : 0;
+            int pid = ready < 0 ? -1 : DisplayScanner.readPid(DisplayScanner.lock(displayNumber));
+            return new Started(ready, pid);
+        }
+    }
+
+    private static final class Probe implements Callable<Long, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int displayNumber;
+        private final long timeoutMillis;
+
+        private Probe(int displayNumber, long timeoutMillis) {
+            this.displayNumber = displayNumber;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public Long call() throws IOException {
+            final File socket = socket(displayNumber);
+            final long start = System.currentTimeMillis();
+            long delay = INITIAL_DELAY;
+            for (;;) {
+                long elapsed = System.currentTimeMillis() - start;
+                if (socket.exists()) return elapsed;
+                if (elapsed >= timeoutMillis) return -1L;
+
+                try {
+                    Thread.sleep(Math.min(delay, timeoutMillis - elapsed));
+                } catch (InterruptedException e) {
+                    throw (IOException) new IOException("Interrupted waiting for display :" + displayNumber).initCause(e);
+                }
+                delay = Math.min(delay * 2, MAX_DELAY);
+            }
+        }
+    }
+
+    private static final class ProbeAny implements Callable<BitSet, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] displayNumbers;
+        private final int count;
+        private final long timeoutMillis;
+
+        private ProbeAny(int[] displayNumbers, int count, long timeoutMillis) {
+            this.displayNumbers = displayNumbers;
+            this.count = count;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public BitSet call() throws IOException {
+            final long start = System.currentTimeMillis();
+            long delay = INITIAL_DELAY;
+            for (;;) {
+                long elapsed = System.currentTimeMillis() - start;
+                BitSet ready = new BitSet();
+                for (int n: displayNumbers) {
+                    if (socket(n).exists()) ready.set(n);
+                }
+                if (ready.cardinality() >= count || elapsed >= timeoutMillis) return ready;
+
+                try {
+                    Thread.sleep(Math.min(delay, timeoutMillis - elapsed));
+                } catch (InterruptedException e) {
+                    throw (IOException) new IOException("Interrupted waiting for displays").initCause(e);
+                }
+                delay = Math.min(delay * 2, MAX_DELAY);
+            }
+        }
+    }
+}
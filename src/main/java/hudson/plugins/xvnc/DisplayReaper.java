@@ -0,0 +1,220 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Reclaims displays leaked by builds whose teardown never happened or failed half way.
+ *
+ * Every run visits at most {@link #BATCH} nodes, continuing where the previous run stopped, so the cost
+ * of a run does not grow with the number of nodes. On every node it:
+ * <ul>
+ * <li>disowns leases of completed builds once no teardown is pending on the node,</li>
+ * <li>kills their servers and removes their dead lock files by {@link OrphanCleaner},</li>
+ * <li>frees numbers allocated without a lease, when found so in two consecutive runs,</li>
+ * <li>keeps numbers in quarantine while something still holds them,</li>
+ * <li>deletes Xauthority files left in workspaces while the node was offline.</li>
+ * </ul>
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class DisplayReaper extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(DisplayReaper.class.getName());
+
+    /*package*/ static int PERIOD = Integer.getInteger(DisplayReaper.class.getName() + ".period", 5);
+    /*package*/ static int BATCH = Integer.getInteger(DisplayReaper.class.getName() + ".batch", 20);
+    /*package*/ static boolean CHECK_QUARANTINE = !Boolean.getBoolean(DisplayReaper.class.getName() + ".skipQuarantineCheck");
+
+    /**
+     * Numbers allocated without a lease in the previous visit of the node.
+     */
+    private final Map<Node, BitSet> suspects = new WeakHashMap<Node, BitSet>();
+
+    /**
+     * Position in the node list the next run starts at.
+     */
+    private int cursor = 0;
+
+    public DisplayReaper() {
+        super("Xvnc display reaper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return PERIOD * MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Jenkins jenkins = Jenkins.getInstance();
+        List<Node> nodes = new ArrayList<Node>();
+        for (Node node: jenkins.getNodes()) {
+            if (node.getNodeProperties().get(DisplayAllocator.Property.class) != null) {
+                nodes.add(node);
+            }
+        }
+        if (jenkins.getNodeProperties().get(DisplayAllocator.Property.class) != null) {
+            nodes.add(jenkins);
+        }
+        if (nodes.isEmpty()) return;
+
+        Xvnc.DescriptorImpl config = jenkins.getDescriptorByType(Xvnc.DescriptorImpl.class);
+        int count = Math.min(BATCH, nodes.size());
+        for (int i = 0; i < count; i++) {
+            Node node = nodes.get((cursor + i) % nodes.size());
+            try {
+                int reaped = reap(node, config, listener);
+                if (reaped > 0) {
+                    XvncMetrics.REAPED.add(reaped);
+                    LOGGER.log(Level.INFO, "Reclaimed {0} leaked Xvnc displays or files on {1}", new Object[] {reaped, node.getDisplayName()});
+                }
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Failed to reclaim Xvnc displays on " + node.getDisplayName()));
+            }
+        }
+        cursor = (cursor + count) % nodes.size();
+    }
+
+    /**
+     * @return Number of leases, numbers and files reclaimed.
+     */
+    /*package*/ int reap(Node node, Xvnc.DescriptorImpl config, TaskListener listener) throws IOException, InterruptedException {
+        Computer computer = node.toComputer();
+        VirtualChannel channel = computer == null ? null : computer.getChannel();
+        if (channel == null) return 0; // Offline; reconciled once it is back
+
+        DisplayAllocator.Property property = DisplayAllocator.Property.of(node);
+        LeaseJournal journal = LeaseJournal.get();
+
+        // Builds are checked first so teardown of one completing meanwhile is seen as pending
+        List<LeaseJournal.Lease> completed = new ArrayList<LeaseJournal.Lease>();
+        for (LeaseJournal.Lease lease: journal.leases(node)) {
+            if (lease.build.length() > 0 && !lease.isBuildRunning()) {
+                completed.add(lease);
+            }
+        }
+        if (property.getTeardown().pending() == 0) {
+            for (LeaseJournal.Lease lease: completed) {
+                journal.disown(lease);
+            }
+        }
+
+        int reaped = OrphanCleaner.cleanUp(node, channel, listener);
+        reaped += freeUnleased(node, property, journal);
+        if (CHECK_QUARANTINE) {
+            checkQuarantined(channel, property.getAllocator(), config);
+        }
+
+        List<String> leftovers = property.takeLeftovers();
+        if (!leftovers.isEmpty()) {
+            try {
+                reaped += channel.call(new Delete(leftovers));
+            } catch (IOException e) {
+                for (String path: leftovers) {
+                    property.leftBehind(path);
+                }
+                throw e;
+            }
+        }
+        return reaped;
+    }
+
+    /**
+     * Free numbers allocated without a lease in this and the previous visit. Numbers are allocated before
+     * their lease is journaled, so nothing is freed while a build or the pool is starting a server.
+     */
+    private int freeUnleased(Node node, DisplayAllocator.Property property, LeaseJournal journal) {
+        BitSet leased = new BitSet();
+        for (LeaseJournal.Lease lease: journal.leases(node)) {
+            leased.set(lease.displayNumber);
+        }
+
+        BitSet unleased = new BitSet();
+        if (DisplayAdmission.starting(node) == 0 && !property.getPool().isStarting()) {
+            for (int n: property.getAllocator().allocated()) {
+                if (!leased.get(n)) {
+                    unleased.set(n);
+                }
+            }
+        }
+
+        BitSet previous;
+        synchronized (suspects) {
+            previous = suspects.put(node, unleased);
+        }
+        if (previous == null) return 0;
+
+        int freed = 0;
+        for (int n = unleased.nextSetBit(0); n >= 0; n = unleased.nextSetBit(n + 1)) {
+            if (previous.get(n)) {
+                property.getAllocator().free(n);
+                unleased.clear(n);
+                freed++;
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Prolong quarantine of numbers still held by a server or its files, after orphans are cleaned up, so
+     * they are not handed out once it expires only to fail again.
+     */
+    private static void checkQuarantined(VirtualChannel channel, DisplayAllocator allocator, Xvnc.DescriptorImpl config)
+            throws IOException, InterruptedException {
+        List<Integer> quarantined = allocator.quarantined();
+        if (quarantined.isEmpty()) return;
+
+        BitSet free = DisplayScanner.free(channel, config.minDisplayNumber, config.maxDisplayNumber);
+        for (int n: quarantined) {
+            if (n >= config.minDisplayNumber && n <= config.maxDisplayNumber && !free.get(n)) {
+                allocator.prolong(n);
+            }
+        }
+    }
+
+    /**
+     * Delete files on the node.
+     *
+     * @return Number of files deleted.
+     */
+    private static final class Delete implements Callable<Integer, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<String> paths;
+
+        private Delete(List<String> paths) {
+            this.paths = new ArrayList<String>(paths);
+        }
+
+        public Integer call() throws IOException {
+            int deleted = 0;
+            for (String path: paths) {
+                if (new File(path).delete()) {
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
+    }
+}
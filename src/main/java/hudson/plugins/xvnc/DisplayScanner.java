@@ -0,0 +1,154 @@
+package hudson.plugins.xvnc;
+
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Inspects X servers running on the node.
+ *
+ * A number is in use when there is a lock file <tt>/tmp/.X&lt;n&gt;-lock</tt> or socket
+ * <tt>/tmp/.X11-unix/X&lt;n&gt;</tt> for it, whoever has created it. Both directories are listed
+ * once in a single remote call.
+ */
+final class DisplayScanner {
+
+    private DisplayScanner() {}
+
+    /**
+     * @return Numbers from [min, max] free on the node.
+     */
+    public static BitSet free(VirtualChannel channel, int min, int max) throws IOException, InterruptedException {
+        return channel.call(new Scan(min, max));
+    }
+
+    /**
+     * @return Pid of the X server recorded in its lock file, or -1 if unknown.
+     */
+    public static int pid(VirtualChannel channel, int displayNumber) throws IOException, InterruptedException {
+        return channel.call(new Pid(displayNumber));
+    }
+
+    /**
+     * @return Numbers from displays that have a live X server on the node.
+     */
+    public static BitSet running(VirtualChannel channel, BitSet displays) throws IOException, InterruptedException {
+        return channel.call(new Running(displays));
+    }
+
+    /*package*/ static File lock(int displayNumber) {
+        return new File("/tmp/.X" + displayNumber + "-lock");
+    }
+
+    /**
+     * Read pid from X server lock file. It contains the number padded to 10 characters.
+     */
+    /*package*/ static int readPid(File lock) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(lock));
+            try {
+                String line = reader.readLine();
+                return line == null ? -1 : Integer.parseInt(line.trim());
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /*package*/ static boolean isAlive(int pid) {
+        File proc = new File("/proc");
+        if (pid <= 0 || !proc.isDirectory()) return true; // Unable to tell
+        return new File(proc, String.valueOf(pid)).exists();
+    }
+
+    /**
+     * Parse display number out of X server file name.
+     *
+     * @return The number or -1 when the name does not belong to an X server.
+     */
+    /*package*/ static int displayNumber(String name, String prefix, String suffix) {
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)) return -1;
+
+        String number = name.substring(prefix.length(), name.length() - suffix.length());
+        if (number.length() == 0 || number.length() > 9) return -1;
+        for (int i = 0; i < number.length(); i++) {
+            if (!Character.isDigit(number.charAt(i))) return -1;
+        }
+        return Integer.parseInt(number);
+    }
+
+    private static final class Scan implements Callable<BitSet, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int min;
+        private final int max;
+
+        private Scan(int min, int max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        public BitSet call() throws IOException {
+            BitSet free = new BitSet(max + 1);
+            free.set(min, max + 1);
+            occupy(free, new File("/tmp").list(), ".X", "-lock");
+            occupy(free, new File("/tmp/.X11-unix").list(), "X", "");
+            return free;
+        }
+
+        private void occupy(BitSet free, String[] names, String prefix, String suffix) {
+            if (names == null) return; // No such directory
+
+            for (String name: names) {
+                int n = displayNumber(name, prefix, suffix);
+                if (n >= min && n <= max) {
+                    free.clear(n);
+                }
+            }
+        }
+    }
+
+    private static final class Pid implements Callable<Integer, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int displayNumber;
+
+        private Pid(int displayNumber) {
+            this.displayNumber = displayNumber;
+        }
+
+        public Integer call() throws IOException {
+            return readPid(lock(displayNumber));
+        }
+    }
+
+    private static final class Running implements Callable<BitSet, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final BitSet displays;
+
+        private Running(BitSet displays) {
+            this.displays = displays;
+        }
+
+        public BitSet call() throws IOException {
+            BitSet running = new BitSet();
+            for (int n = displays.nextSetBit(0); n >= 0; n = displays.nextSetBit(n + 1)) {
+                File lock = lock(n);
+                if (lock.exists() && isAlive(readPid(lock))) {
+                    running.set(n);
+                }
+            }
+            return running;
+        }
+    }
+}
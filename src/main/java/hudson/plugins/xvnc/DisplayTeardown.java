@@ -0,0 +1,568 @@
+package hudson.plugins.xvnc;
+
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ProcessTree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops X servers of completed builds in the background so build completion does not wait for them.
+ *
+ * Every node has a queue of its own drained by at most {@link #WORKERS} threads. Once the queue is
+ * full, teardown runs on the submitting thread. Termination escalates from the polite way the server
+ * was started with to killing its pid, first by SIGTERM and after {@link #KILL_GRACE} seconds by SIGKILL,
+ * and the server is considered stopped only once the node has confirmed it is gone.
+ *
+ * Displays of a build are captured and stopped by {@link #tearDown} in a single call to their node.
+ */
+final class DisplayTeardown {
+
+    private static final Logger LOGGER = Logger.getLogger(DisplayTeardown.class.getName());
+
+    /**
+     * Seconds single step of the teardown can take.
+     */
+    /*package*/ static int TIMEOUT = Integer.getInteger(DisplayTeardown.class.getName() + ".timeout", 30);
+
+    /**
+     * Seconds X server is given to exit on SIGTERM before it is sent SIGKILL.
+     */
+    /*package*/ static int KILL_GRACE = Integer.getInteger(DisplayTeardown.class.getName() + ".killGrace", 5);
+
+    private static final int ATTEMPTS = 3;
+    private static final int WORKERS = 2;
+    private static final int CAPACITY = 64;
+
+    private final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+
+    /**
+     * Teardowns queued or running.
+     */
+    private int pending = 0;
+    private int workers = 0;
+
+    /**
+     * Run teardown in the background.
+     */
+    public void submit(Runnable teardown) {
+        synchronized (this) {
+            if (queue.size() < CAPACITY) {
+                queue.addLast(teardown);
+                pending++;
+                if (workers < WORKERS) {
+                    workers++;
+                    Computer.threadPoolForRemoting.submit(new Worker());
+                }
+                return;
+            }
+        }
+        teardown.run(); // Node can not keep up; slow down its builds rather than queue indefinitely
+    }
+
+    /**
+     * Wait for teardowns submitted so far to complete.
+     *
+     * @return false if there was nothing to wait for.
+     */
+    public synchronized boolean drain(long timeoutMillis) throws InterruptedException {
+        if (pending == 0) return false;
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (long left = timeoutMillis; pending > 0 && left > 0; left = deadline - System.currentTimeMillis()) {
+            wait(left);
+        }
+        return true;
+    }
+
+    /*package*/ synchronized int pending() {
+        return pending;
+    }
+
+    private final class Worker implements Runnable {
+        public void run() {
+            for (;;) {
+                Runnable teardown;
+                synchronized (DisplayTeardown.this) {
+                    teardown = queue.poll();
+                    if (teardown == null) {
+                        workers--;
+                        return;
+                    }
+                }
+                try {
+                    teardown.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Xvnc teardown failed", e);
+                } finally {
+                    synchronized (DisplayTeardown.this) {
+                        pending--;
+                        DisplayTeardown.this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop X server and wait for it to go away.
+     *
+     * The first attempt uses <tt>vncserver -kill</tt> or kills the launched process; following attempts
+     * kill the pid recorded in the lock file.
+     *
+     * @param vncserverCommand Wrapper that has started the server, or null if it was started directly as proc.
+     * @return true if the server is confirmed gone, false if it is still running after all attempts.
+     */
+    public static boolean terminate(Launcher launcher, int displayNumber, String vncserverCommand, Proc proc,
+            Map<String, String> xauthorityEnv, TaskListener listener) throws InterruptedException {
+        VirtualChannel channel = launcher.getChannel();
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            try {
+                if (attempt > 0) {
+                    listener.getLogger().println("Display :" + displayNumber + " still running, killing it (attempt " + (attempt + 1) + ")");
+                    channel.call(new ForceKill(displayNumber, KILL_GRACE * 1000L));
+                } else if (vncserverCommand != null) {
+                    launcher.launch().cmds(vncserverCommand, "-kill", ":" + displayNumber).envs(xauthorityEnv)
+                            .stdout(listener).start().joinWithTimeout(TIMEOUT, TimeUnit.SECONDS, listener);
+                } else {
+                    proc.kill();
+                }
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Failed to stop display :" + displayNumber));
+            }
+
+            try {
+                if (awaitGone(channel, displayNumber, TIMEOUT * 1000L)) return true;
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Failed to check display :" + displayNumber));
+            }
+        }
+        return false;
+    }
+
+    private static boolean awaitGone(VirtualChannel channel, int displayNumber, long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (long delay = 10;; delay = Math.min(delay * 2, 500)) {
+            if (channel.call(new Gone(displayNumber))) return true;
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Kill X server by pid from its lock file, sending SIGKILL when it is still alive after the grace period.
+     */
+    private static final class ForceKill implements Callable<Void, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int displayNumber;
+        private final long graceMillis;
+
+        private ForceKill(int displayNumber, long graceMillis) {
+            this.displayNumber = displayNumber;
+            this.graceMillis = graceMillis;
+        }
+
+        public Void call() throws IOException {
+            int pid = DisplayScanner.readPid(DisplayScanner.lock(displayNumber));
+            if (pid <= 0) return null;
+
+            ProcessTree.OSProcess process = ProcessTree.get().get(pid);
+            if (process == null) return null;
+            try {
+                process.kill();
+
+                long deadline = System.currentTimeMillis() + graceMillis;
+                for (long delay = 10; DisplayScanner.isAlive(pid); delay = Math.min(delay * 2, 500)) {
+                    if (System.currentTimeMillis() > deadline) {
+                        // Ignored SIGTERM, or got stuck handling it
+                        new ProcessBuilder("kill", "-KILL", String.valueOf(pid)).redirectErrorStream(true).start().waitFor();
+                        break;
+                    }
+                    Thread.sleep(delay);
+                }
+            } catch (InterruptedException e) {
+                throw (IOException) new IOException("Interrupted killing " + pid).initCause(e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Check X server is gone, removing files left behind by a killed one.
+     */
+    private static final class Gone implements Callable<Boolean, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int displayNumber;
+
+        private Gone(int displayNumber) {
+            this.displayNumber = displayNumber;
+        }
+
+        public Boolean call() throws IOException {
+            File lock = DisplayScanner.lock(displayNumber);
+            if (!lock.exists()) return true;
+
+            int pid = DisplayScanner.readPid(lock);
+            if (pid <= 0 || DisplayScanner.isAlive(pid)) return false;
+
+            // Killed server had no chance to clean up
+            DisplayReadiness.socket(displayNumber).delete();
+            lock.delete();
+            return true;
+        }
+    }
+
+    /**
+     * Capture all the displays, then stop those started for the build and delete their Xauthority files,
+     * in a single call to the node.
+     *
+     * Screenshots and recordings are streamed to the controller. Servers are stopped the same way as
+     * by {@link #terminate}, only from the node JVM; servers started directly are killed through the process
+     * launched by {@link ServerLog} and by the pid in their lock file.
+     *
+     * @return Outcomes in the order of displays.
+     */
+    public static List<Outcome> tearDown(VirtualChannel channel, List<Display> displays) throws IOException, InterruptedException {
+        return channel.call(new Stop(new ArrayList<Display>(displays), TIMEOUT * 1000L, KILL_GRACE * 1000L));
+    }
+
+    /**
+     * Display to tear down.
+     */
+    /*package*/ static final class Display implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int displayNumber;
+        /**
+         * Stop the server; false for displays returned to the pool.
+         */
+        private final boolean stop;
+        private final String vncserverCommand;
+        private final HashMap<String, String> xauthorityEnv;
+        /**
+         * Xauthority file to delete, or null.
+         */
+        private final String xauthority;
+        /**
+         * Directory to run ImageMagick <tt>import</tt> in.
+         */
+        private final String workspace;
+
+        private String log;
+        private OutputStream logOut;
+        private String recording;
+        private OutputStream recordingOut;
+        private String checkpoints;
+        private String checkpointDir;
+        private OutputStream checkpointsOut;
+        private Callable<Void, IOException> capture;
+        private OutputStream screenshotOut;
+
+        /*package*/ Display(int displayNumber, boolean stop, String vncserverCommand, Map<String, String> xauthorityEnv,
+                String xauthority, String workspace) {
+            this.displayNumber = displayNumber;
+            this.stop = stop;
+            this.vncserverCommand = vncserverCommand;
+            this.xauthorityEnv = new HashMap<String, String>(xauthorityEnv);
+            this.xauthority = xauthority;
+            this.workspace = workspace;
+        }
+
+        /**
+         * Write output of the server and commands run to stop it to its log, then close the log writing the full
+         * output to out unless it is null.
+         */
+        /*package*/ void log(String id, OutputStream out) {
+            this.log = id;
+            this.logOut = out;
+        }
+
+        /**
+         * Stop recording, writing it to out unless it is null.
+         */
+        /*package*/ void recording(String id, OutputStream out) {
+            this.recording = id;
+            this.recordingOut = out;
+        }
+
+        /**
+         * Stop taking checkpoint screenshots, writing them to out as ZIP archive unless it is null.
+         */
+        /*package*/ void checkpoints(String id, String dir, OutputStream out) {
+            this.checkpoints = id;
+            this.checkpointDir = dir;
+            this.checkpointsOut = out;
+        }
+
+        /**
+         * Write screenshot to out, by backend capture or by ImageMagick <tt>import</tt> when it is null or fails.
+         */
+        /*package*/ void screenshot(Callable<Void, IOException> capture, OutputStream out) {
+            this.capture = capture;
+            this.screenshotOut = out;
+        }
+    }
+
+    /**
+     * What happened to the display.
+     */
+    /*package*/ static final class Outcome implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /*package*/ boolean recordingSaved;
+        /*package*/ int checkpointsSaved;
+        /*package*/ int checkpointsDropped;
+        /*package*/ boolean screenshotSaved;
+        /**
+         * Why the backend could not capture the display, or null.
+         */
+        /*package*/ String captureFailure;
+        /*package*/ long screenshotMillis;
+        /*package*/ boolean gone;
+        /*package*/ long killMillis;
+        /**
+         * Last lines of the server log, or null.
+         */
+        /*package*/ String serverOutput;
+        /**
+         * Output of commands and failures, to be logged on the controller.
+         */
+        /*package*/ final List<String> log = new ArrayList<String>();
+    }
+
+    private static final class Stop implements Callable<List<Outcome>, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<Display> displays;
+        private final long timeoutMillis;
+        private final long graceMillis;
+
+        private Stop(ArrayList<Display> displays, long timeoutMillis, long graceMillis) {
+            this.displays = displays;
+            this.timeoutMillis = timeoutMillis;
+            this.graceMillis = graceMillis;
+        }
+
+        public List<Outcome> call() throws IOException {
+            List<Outcome> outcomes = new ArrayList<Outcome>();
+            try {
+                // Capture every display before any of them goes away, they may share Xauthority
+                for (Display display: displays) {
+                    Outcome outcome = new Outcome();
+                    outcomes.add(outcome);
+                    capture(display, outcome);
+                }
+                for (int i = 0; i < displays.size(); i++) {
+                    if (displays.get(i).stop) {
+                        long start = System.currentTimeMillis();
+                        outcomes.get(i).gone = stop(displays.get(i), outcomes.get(i));
+                        outcomes.get(i).killMillis = System.currentTimeMillis() - start;
+                    }
+                }
+                for (int i = 0; i < displays.size(); i++) {
+                    Display display = displays.get(i);
+                    if (display.log != null) {
+                        outcomes.get(i).serverOutput = ServerLog.close(display.log, display.logOut).call();
+                    }
+                    if (display.xauthority != null) {
+                        new File(display.xauthority).delete();
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw (IOException) new IOException("Interrupted tearing down displays").initCause(e);
+            }
+            return outcomes;
+        }
+
+        private void capture(Display display, Outcome outcome) throws InterruptedException {
+            if (display.checkpoints != null) {
+                try {
+                    int[] saved = ScreenCheckpoints.stop(display.checkpoints, display.checkpointDir, display.checkpointsOut).call();
+                    outcome.checkpointsSaved = saved[0];
+                    outcome.checkpointsDropped = saved[1];
+                } catch (IOException e) {
+                    outcome.log.add("Failed to save checkpoint screenshots of display :" + display.displayNumber + ": " + e);
+                }
+            }
+            if (display.recording != null) {
+                try {
+                    outcome.recordingSaved = ScreenRecorder.stop(display.recording, display.recordingOut).call();
+                } catch (IOException e) {
+                    outcome.log.add("Failed to save recording of display :" + display.displayNumber + ": " + e);
+                }
+            }
+
+            if (display.screenshotOut == null) return;
+            long start = System.currentTimeMillis();
+            try {
+                if (display.capture == null) throw new IOException("Display server can not read the screen");
+                display.capture.call();
+                outcome.screenshotSaved = true;
+            } catch (IOException e) {
+                // Not supported by the server, or one we can not authenticate to
+                outcome.captureFailure = e.getMessage();
+                try {
+                    outcome.screenshotSaved = importScreen(display, outcome);
+                } catch (IOException x) {
+                    outcome.log.add("Failed to take screenshot of display :" + display.displayNumber + ": " + x);
+                }
+            } finally {
+                outcome.screenshotMillis = System.currentTimeMillis() - start;
+                if (!outcome.screenshotSaved) {
+                    try {
+                        display.screenshotOut.close();
+                    } catch (IOException e) {
+                        // Closed already
+                    }
+                }
+            }
+        }
+
+        private boolean importScreen(Display display, Outcome outcome) throws IOException, InterruptedException {
+            File screenshot = File.createTempFile("screenshot-", ".jpg", new File(display.workspace));
+            try {
+                if (run(display, outcome, "import", "-window", "root", "-display", ":" + display.displayNumber, screenshot.getPath()) != 0) {
+                    return false;
+                }
+                InputStream in = new FileInputStream(screenshot);
+                try {
+                    byte[] buf = new byte[8192];
+                    for (int read; (read = in.read(buf)) >= 0;) {
+                        display.screenshotOut.write(buf, 0, read);
+                    }
+                } finally {
+                    in.close();
+                    display.screenshotOut.close();
+                }
+                return true;
+            } finally {
+                screenshot.delete();
+            }
+        }
+
+        private boolean stop(Display display, Outcome outcome) throws InterruptedException {
+            // Server started directly may not write a lock file, the launched process is all there is of it then
+            Proc proc = display.vncserverCommand == null && display.log != null ? ServerLog.process(display.log) : null;
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                try {
+                    if (attempt > 0) {
+                        outcome.log.add("Display :" + display.displayNumber + " still running, killing it (attempt " + (attempt + 1) + ")");
+                        kill(display, proc);
+                    } else if (display.vncserverCommand != null) {
+                        run(display, outcome, display.vncserverCommand, "-kill", ":" + display.displayNumber);
+                    } else {
+                        kill(display, proc);
+                    }
+
+                    long deadline = System.currentTimeMillis() + timeoutMillis;
+                    for (long delay = 10;; delay = Math.min(delay * 2, 500)) {
+                        if (new Gone(display.displayNumber).call() && (proc == null || !proc.isAlive())) return true;
+                        if (System.currentTimeMillis() > deadline) break;
+                        Thread.sleep(delay);
+                    }
+                } catch (IOException e) {
+                    outcome.log.add("Failed to stop display :" + display.displayNumber + ": " + e);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Kill the launched process, then the pid from the lock file in case it is not the server itself.
+         */
+        private void kill(Display display, Proc proc) throws IOException, InterruptedException {
+            if (proc != null) {
+                proc.kill();
+            }
+            new ForceKill(display.displayNumber, graceMillis).call();
+        }
+
+        /**
+         * Run command in the node JVM, killing it once it takes longer than the timeout. Output is read while
+         * the command runs and goes to the server log of the display, or to the outcome if it has none.
+         *
+         * @return Exit code, or -1 when the command has timed out.
+         */
+        private int run(Display display, Outcome outcome, String... cmds) throws IOException, InterruptedException {
+            ProcessBuilder builder = new ProcessBuilder(cmds).redirectErrorStream(true);
+            builder.environment().putAll(display.xauthorityEnv);
+            final Process process = builder.start();
+            process.getOutputStream().close();
+
+            // Command blocks once its output fills the pipe, so it can not wait for it to exit
+            final List<String> lines = new ArrayList<String>();
+            Thread reader = new Thread("Output of " + cmds[0] + " for display :" + display.displayNumber) {
+                @Override
+                public void run() {
+                    BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                    try {
+                        for (String line; (line = out.readLine()) != null;) {
+                            synchronized (lines) {
+                                lines.add(line);
+                            }
+                        }
+                    } catch (IOException e) {
+                        // Destroyed
+                    } finally {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            // Closed already
+                        }
+                    }
+                }
+            };
+            reader.setDaemon(true);
+            reader.start();
+            try {
+                long deadline = System.currentTimeMillis() + timeoutMillis;
+                for (;;) {
+                    try {
+                        return process.exitValue();
+                    } catch (IllegalThreadStateException running) {
+                        if (System.currentTimeMillis() > deadline) {
+                            process.destroy();
+                            outcome.log.add("'" + cmds[0] + "' timed out after " + timeoutMillis + " ms");
+                            return -1;
+                        }
+                        Thread.sleep(50);
+                    }
+                }
+            } finally {
+                // Processes it has left behind may keep the output open
+                reader.join(1000);
+                OutputStream log = display.log == null ? null : ServerLog.output(display.log);
+                synchronized (lines) {
+                    for (String line: lines) {
+                        if (log != null) {
+                            log.write((line + "\n").getBytes());
+                        } else {
+                            outcome.log.add(line);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
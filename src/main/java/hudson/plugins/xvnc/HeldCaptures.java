@@ -0,0 +1,179 @@
+package hudson.plugins.xvnc;
+
+import hudson.FilePath;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Captures of displays released before their build has completed, kept in a directory on the node until
+ * the result is known.
+ *
+ * Displays are released once the wrapper goes out of scope, while publishers can still fail the build.
+ * What is saved only for failed builds is written to the node meanwhile, then copied to the build when it
+ * completes worse than successful, and deleted either way. Whichever of {@link #captured} and
+ * {@link #completed} comes second does it.
+ */
+final class HeldCaptures {
+
+    private final FilePath dir;
+    private final List<Capture> captures = new ArrayList<Capture>();
+    private boolean used;
+    private boolean captured;
+    private Result result;
+
+    /**
+     * @param dir Directory on the node, created once something is written to it.
+     */
+    /*package*/ HeldCaptures(FilePath dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Stream writing to the file of given name in the directory, from the node JVM.
+     */
+    /*package*/ synchronized OutputStream stream(String name) {
+        used = true;
+        return new NodeFile(dir.getRemote(), dir.child(name).getRemote());
+    }
+
+    /**
+     * Copy file of given name to target on the controller if the build fails. Files left empty are skipped.
+     *
+     * @param unzip Extract the file as ZIP archive to target directory.
+     * @param message Printed once the file is copied, or null.
+     */
+    /*package*/ synchronized void keep(String name, File target, boolean unzip, String message) {
+        captures.add(new Capture(name, target, unzip, message));
+    }
+
+    /**
+     * Teardown has written everything; collect now if the build has completed.
+     */
+    /*package*/ void captured(TaskListener listener) throws InterruptedException {
+        Result result;
+        synchronized (this) {
+            captured = true;
+            result = this.result;
+        }
+        if (result != null) {
+            collect(result, listener);
+        }
+    }
+
+    /**
+     * Build has completed with given result.
+     *
+     * @return true when captures are to be collected now, the teardown is done with them.
+     */
+    /*package*/ synchronized boolean completed(Result result) {
+        if (this.result != null) return false;
+
+        this.result = result;
+        return captured;
+    }
+
+    /*package*/ void collect(Result result, TaskListener listener) throws InterruptedException {
+        List<Capture> captures;
+        synchronized (this) {
+            if (!used) return;
+            captures = new ArrayList<Capture>(this.captures);
+        }
+        try {
+            if (result.isWorseThan(Result.SUCCESS)) {
+                for (Capture capture: captures) {
+                    FilePath source = dir.child(capture.name);
+                    if (!source.exists() || source.length() == 0) continue;
+
+                    capture.target.getParentFile().mkdirs();
+                    if (capture.unzip) {
+                        source.unzip(new FilePath(capture.target));
+                    } else {
+                        source.copyTo(new FilePath(capture.target));
+                    }
+                    if (capture.message != null) {
+                        listener.getLogger().println(capture.message);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to save captures of displays from " + dir));
+        } finally {
+            try {
+                dir.deleteRecursive();
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Failed to delete " + dir));
+            }
+        }
+    }
+
+    private static final class Capture {
+        private final String name;
+        private final File target;
+        private final boolean unzip;
+        private final String message;
+
+        private Capture(String name, File target, boolean unzip, String message) {
+            this.name = name;
+            this.target = target;
+            this.unzip = unzip;
+            this.message = message;
+        }
+    }
+
+    /**
+     * File written in the node JVM, opened on the first write.
+     */
+    private static final class NodeFile extends OutputStream implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String dir;
+        private final String path;
+        private transient OutputStream out;
+
+        private NodeFile(String dir, String path) {
+            this.dir = dir;
+            this.path = path;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            open().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            open().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        private OutputStream open() throws IOException {
+            if (out == null) {
+                File directory = new File(dir);
+                if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create " + directory);
+                out = new FileOutputStream(path);
+            }
+            return out;
+        }
+    }
+}
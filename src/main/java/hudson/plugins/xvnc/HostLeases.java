@@ -0,0 +1,195 @@
+package hudson.plugins.xvnc;
+
+import hudson.FilePath;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Display numbers leased by agents sharing a host, so they do not start servers on the same number.
+ *
+ * Every agent keeps its own {@link DisplayAllocator}, so agents of different users or containers on one host
+ * pick the same numbers and collide. With a directory shared by all of them, a number is leased by holding an
+ * OS lock of file <tt>X&lt;n&gt;.lease</tt> there from before the server is launched until it is ready or has
+ * failed. Once ready, its lock file and socket keep others away. The lock is released by the OS when the agent
+ * dies, so there is nothing to clean up and no central service to ask.
+ */
+final class HostLeases {
+
+    /**
+     * Leases held by this JVM by lease file.
+     */
+    private static final Map<String, FileLock> HELD = new ConcurrentHashMap<String, FileLock>();
+
+    private HostLeases() {}
+
+    /**
+     * Allocate numbers and lease them on the host. Numbers leased by other agents, or found in use once leased,
+     * are returned to the allocator and others are tried until the range is exhausted.
+     *
+     * @param free Numbers free on the node; those leased by others are cleared.
+     * @return Numbers allocated and leased.
+     * @throws RuntimeException When there are not enough numbers. Numbers leased so far are released.
+     */
+    public static int[] allocate(VirtualChannel channel, String dir, DisplayAllocator allocator, int min, int max,
+            BitSet free, int count) throws IOException, InterruptedException {
+        List<Integer> leased = new ArrayList<Integer>();
+        boolean done = false;
+        try {
+            while (leased.size() < count) {
+                int[] numbers = allocator.allocate(min, max, free, count - leased.size());
+                BitSet taken = channel.call(new Claim(dir, numbers));
+                for (int n: numbers) {
+                    if (taken.get(n)) {
+                        allocator.free(n);
+                        free.clear(n);
+                        XvncMetrics.HOST_LEASE_CONFLICTS.inc();
+                    } else {
+                        leased.add(n);
+                    }
+                }
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                int[] numbers = toArray(leased);
+                for (int n: numbers) {
+                    allocator.free(n);
+                }
+                release(channel, dir, numbers);
+            }
+        }
+        return toArray(leased);
+    }
+
+    /**
+     * Release leases of numbers held by the node.
+     */
+    public static void release(VirtualChannel channel, String dir, int... numbers) throws IOException, InterruptedException {
+        if (numbers.length > 0) {
+            channel.call(new Release(dir, numbers));
+        }
+    }
+
+    private static File file(String dir, int displayNumber) {
+        return new File(dir, "X" + displayNumber + ".lease");
+    }
+
+    /**
+     * Set permissions by {@link FilePath#chmod}, file permissions of Java 5 can not be set for others.
+     */
+    private static void chmod(File file, int mask) throws IOException {
+        try {
+            new FilePath(file).chmod(mask);
+        } catch (InterruptedException e) {
+            throw (IOException) new IOException("Interrupted setting permissions of " + file).initCause(e);
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Lock lease files, returning numbers that could not be leased.
+     */
+    private static final class Claim implements Callable<BitSet, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String dir;
+        private final int[] numbers;
+
+        private Claim(String dir, int[] numbers) {
+            this.dir = dir;
+            this.numbers = numbers;
+        }
+
+        public BitSet call() throws IOException {
+            File directory = new File(dir);
+            if (!directory.isDirectory()) {
+                if (!directory.mkdirs() && !directory.isDirectory()) throw new IOException("Unable to create " + directory);
+                // Shared by agents running as different users, each removing only its own files like /tmp
+                chmod(directory, 01777);
+            }
+
+            BitSet taken = new BitSet();
+            for (int n: numbers) {
+                if (!claim(n)) {
+                    taken.set(n);
+                }
+            }
+            return taken;
+        }
+
+        private boolean claim(int displayNumber) throws IOException {
+            File file = file(dir, displayNumber);
+            RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+            } catch (FileNotFoundException e) {
+                return false; // Created by a user we can not lock it for
+            }
+            chmod(file, 0666);
+
+            FileLock lock = null;
+            try {
+                lock = raf.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Held by this JVM
+            } finally {
+                if (lock == null) {
+                    raf.close();
+                }
+            }
+            if (lock == null) return false;
+
+            // Started before its agent took the lease, or by someone not taking leases at all
+            if (DisplayScanner.lock(displayNumber).exists() || DisplayReadiness.socket(displayNumber).exists()) {
+                lock.release();
+                raf.close();
+                return false;
+            }
+            HELD.put(file.getPath(), lock);
+            return true;
+        }
+    }
+
+    private static final class Release implements Callable<Void, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String dir;
+        private final int[] numbers;
+
+        private Release(String dir, int[] numbers) {
+            this.dir = dir;
+            this.numbers = numbers;
+        }
+
+        public Void call() throws IOException {
+            for (int n: numbers) {
+                // Lease files are never deleted, another agent may be just about to lock the one deleted
+                FileLock lock = HELD.remove(file(dir, n).getPath());
+                if (lock != null) {
+                    lock.release();
+                    lock.channel().close();
+                }
+            }
+            return null;
+        }
+    }
+}
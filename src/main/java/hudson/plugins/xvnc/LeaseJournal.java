@@ -0,0 +1,363 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Append-only record of displays leased on nodes so allocation survives controller restart.
+ *
+ * Every lease and release appends a line to <tt>$JENKINS_HOME/xvnc-leases.log</tt>, synced to the disk
+ * before the call returns. The file is rewritten with live leases only once released ones prevail, by
+ * writing and syncing a new file that then replaces it. On startup the journal is replayed into
+ * the allocators and reconciled with the X servers actually running on each node once it is online.
+ *
+ * Leases taken in this session are owned by their build, its teardown or the pool until released or
+ * disowned. Leases replayed from the file and disowned ones are orphans that {@link #reconcile} and
+ * {@link OrphanCleaner} may release.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class LeaseJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(LeaseJournal.class.getName());
+
+    private static final String ACQUIRED = "+";
+    private static final String RELEASED = "-";
+
+    private final File file;
+
+    /**
+     * Live leases by {@link #key}.
+     */
+    private final Map<String, Lease> leases = new LinkedHashMap<String, Lease>();
+
+    /**
+     * Number of records in the file.
+     */
+    private int records = 0;
+
+    private Writer writer;
+    /**
+     * Stream {@link #writer} writes to, synced after every record.
+     */
+    private FileOutputStream stream;
+
+    public LeaseJournal() {
+        this(new File(Jenkins.getInstance().getRootDir(), "xvnc-leases.log"));
+    }
+
+    /*package*/ LeaseJournal(File file) {
+        this.file = file;
+    }
+
+    public static LeaseJournal get() {
+        return Jenkins.getInstance().getExtensionList(LeaseJournal.class).get(LeaseJournal.class);
+    }
+
+    public synchronized void acquired(Node node, int displayNumber, String build, int pid) {
+        Lease lease = new Lease(node.getNodeName(), displayNumber, build, pid, System.currentTimeMillis());
+        lease.owned = true;
+        leases.put(key(lease.node, displayNumber), lease);
+        append(ACQUIRED + "\t" + lease.node + "\t" + displayNumber + "\t" + build + "\t" + pid + "\t" + lease.started);
+    }
+
+    public synchronized void released(Node node, int displayNumber) {
+        if (leases.remove(key(node.getNodeName(), displayNumber)) == null) return;
+
+        append(RELEASED + "\t" + node.getNodeName() + "\t" + displayNumber);
+        if (records > 64 && records > 2 * leases.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Nobody is going to release the lease; the server failed to terminate or its node went offline.
+     */
+    public synchronized void disowned(Node node, int displayNumber) {
+        Lease lease = leases.get(key(node.getNodeName(), displayNumber));
+        if (lease != null) {
+            lease.owned = false;
+        }
+    }
+
+    /**
+     * Disown the lease unless it has been released meanwhile.
+     */
+    /*package*/ synchronized void disown(Lease lease) {
+        if (leases.get(key(lease.node, lease.displayNumber)) == lease) {
+            lease.owned = false;
+        }
+    }
+
+    public synchronized List<Lease> leases(Node node) {
+        List<Lease> ret = new ArrayList<Lease>();
+        for (Lease lease: leases.values()) {
+            if (lease.node.equals(node.getNodeName())) {
+                ret.add(lease);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Read leases from the file. Lines cut short by a crash are ignored.
+     */
+    /*package*/ synchronized void load() {
+        leases.clear();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    replay(line.split("\t", -1));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+        }
+        compact();
+    }
+
+    private void replay(String[] fields) {
+        try {
+            if (ACQUIRED.equals(fields[0]) && fields.length == 6) {
+                Lease lease = new Lease(fields[1], Integer.parseInt(fields[2]), fields[3],
+                        Integer.parseInt(fields[4]), Long.parseLong(fields[5]));
+                leases.put(key(lease.node, lease.displayNumber), lease);
+            } else if (RELEASED.equals(fields[0]) && fields.length == 3) {
+                leases.remove(key(fields[1], Integer.parseInt(fields[2])));
+            }
+        } catch (NumberFormatException e) {
+            // Partially written record
+        }
+    }
+
+    private void append(String record) {
+        try {
+            if (writer == null) {
+                stream = new FileOutputStream(file, true);
+                writer = new OutputStreamWriter(stream, "UTF-8");
+            }
+            writer.write(record);
+            writer.write('\n');
+            writer.flush();
+            // Survive power loss and kernel crash, not only crash of the controller
+            stream.getFD().sync();
+            records++;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write " + file, e);
+        }
+    }
+
+    /**
+     * Replace the file with one containing live leases only.
+     */
+    private void compact() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            close();
+            FileOutputStream os = new FileOutputStream(tmp);
+            Writer out = new OutputStreamWriter(os, "UTF-8");
+            try {
+                for (Lease lease: leases.values()) {
+                    out.write(ACQUIRED + "\t" + lease.node + "\t" + lease.displayNumber + "\t" + lease.build + "\t" + lease.pid + "\t" + lease.started + "\n");
+                }
+                out.flush();
+                // Content has to be on the disk before the rename is, or a crash may leave an empty journal
+                os.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                // Windows does not replace existing file on rename
+                file.delete();
+                if (!tmp.renameTo(file)) throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+            records = leases.size();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to compact " + file, e);
+        }
+    }
+
+    private void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            stream = null;
+        }
+    }
+
+    private static String key(String node, int displayNumber) {
+        return node + ":" + displayNumber;
+    }
+
+    /**
+     * Restore allocation state recorded before restart.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void replay() throws IOException, InterruptedException {
+        LeaseJournal journal = get();
+        journal.load();
+
+        Jenkins jenkins = Jenkins.getInstance();
+        List<Node> nodes = new ArrayList<Node>(jenkins.getNodes());
+        nodes.add(jenkins);
+        for (Node node: nodes) {
+            List<Lease> leases = journal.leases(node);
+            if (leases.isEmpty()) continue;
+
+            DisplayAllocator allocator = DisplayAllocator.Property.of(node).getAllocator();
+            for (Lease lease: leases) {
+                allocator.reserve(lease.displayNumber);
+            }
+
+            Computer computer = node.toComputer();
+            if (computer != null && computer.getChannel() != null) {
+                journal.reconcile(node, computer.getChannel(), TaskListener.NULL);
+            }
+        }
+    }
+
+    /**
+     * Claim orphaned leases of builds no longer running so no one else releases them meanwhile.
+     *
+     * Every claimed lease has to be either {@link #released} or {@link #unclaim}ed.
+     */
+    /*package*/ List<Lease> claimOrphans(Node node) {
+        List<Lease> orphans = new ArrayList<Lease>();
+        for (Lease lease: leases(node)) {
+            if (!lease.isBuildRunning() && claim(lease)) {
+                orphans.add(lease);
+            }
+        }
+        return orphans;
+    }
+
+    private synchronized boolean claim(Lease lease) {
+        if (lease.owned || lease.claimed || leases.get(key(lease.node, lease.displayNumber)) != lease) return false;
+
+        lease.claimed = true;
+        return true;
+    }
+
+    /*package*/ synchronized void unclaim(Lease lease) {
+        lease.claimed = false;
+    }
+
+    /**
+     * Release orphaned leases whose X server is gone from the node.
+     *
+     * Servers still running are kept reserved so they are not handed out again.
+     */
+    /*package*/ void reconcile(Node node, VirtualChannel channel, TaskListener listener) throws IOException, InterruptedException {
+        List<Lease> stale = claimOrphans(node);
+        if (stale.isEmpty()) return;
+
+        DisplayAllocator allocator = DisplayAllocator.Property.of(node).getAllocator();
+        BitSet displays = new BitSet();
+        for (Lease lease: stale) {
+            displays.set(lease.displayNumber);
+        }
+        BitSet running = null;
+        try {
+            running = DisplayScanner.running(channel, displays);
+        } finally {
+            if (running == null) {
+                for (Lease lease: stale) {
+                    unclaim(lease);
+                }
+            }
+        }
+        for (Lease lease: stale) {
+            if (running.get(lease.displayNumber)) {
+                allocator.reserve(lease.displayNumber);
+                unclaim(lease);
+                listener.getLogger().println("Xvnc display :" + lease.displayNumber + " of " + lease.build + " is still running, keeping it reserved");
+            } else {
+                allocator.free(lease.displayNumber);
+                released(node, lease.displayNumber);
+            }
+        }
+    }
+
+    /*package*/ static final class Lease {
+        /*package*/ final String node;
+        /*package*/ final int displayNumber;
+        /**
+         * {@link Run#getExternalizableId()} of the build, or empty for pooled display.
+         */
+        /*package*/ final String build;
+        /*package*/ final int pid;
+        /*package*/ final long started;
+        /**
+         * Taken in this session and not disowned. Guarded by the journal.
+         */
+        private boolean owned;
+        /**
+         * Being released by {@link #reconcile} or {@link OrphanCleaner}. Guarded by the journal.
+         */
+        private boolean claimed;
+
+        private Lease(String node, int displayNumber, String build, int pid, long started) {
+            this.node = node;
+            this.displayNumber = displayNumber;
+            this.build = build;
+            this.pid = pid;
+            this.started = started;
+        }
+
+        /*package*/ boolean isBuildRunning() {
+            if (build.length() == 0) return false;
+            try {
+                Run<?, ?> run = Run.fromExternalizableId(build);
+                return run != null && run.isBuilding();
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+    }
+
+    @Extension
+    public static final class Reconciler extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
+            Node node = c.getNode();
+            if (node == null || c.getChannel() == null) return;
+
+            get().reconcile(node, c.getChannel(), listener);
+        }
+    }
+}
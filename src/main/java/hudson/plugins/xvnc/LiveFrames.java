@@ -0,0 +1,321 @@
+package hudson.plugins.xvnc;
+
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Samples a display in the node JVM for {@link LiveView}, returning only the tiles that have changed.
+ *
+ * Xvnc servers are read over a RFB connection kept open between samples, asking the server for changed
+ * regions only; other servers by the capture of their backend. Either way the display is cut into tiles of
+ * {@link #TILE} pixels and a tile is sent as JPEG only when its pixels differ from those sent before.
+ * Nothing runs between samples. A source not sampled for its idle time is closed by a single thread shared
+ * by all sources in the node JVM.
+ */
+final class LiveFrames {
+
+    private static final Logger LOGGER = Logger.getLogger(LiveFrames.class.getName());
+
+    private static final int TIMEOUT = 10000;
+
+    /**
+     * Width and height of tiles in pixels.
+     */
+    /*package*/ static int TILE = Integer.getInteger(LiveFrames.class.getName() + ".tile", 64);
+
+    /**
+     * Node JVM scheduler closing idle sources.
+     */
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+    /**
+     * Sources open in this JVM by id.
+     */
+    private static final Map<String, Source> SOURCES = new ConcurrentHashMap<String, Source>();
+
+    private LiveFrames() {}
+
+    /**
+     * Sample display on the node, opening source of given id unless it is open already.
+     *
+     * @param idleMillis Time the source is kept open without being sampled.
+     * @return Tiles changed since the last sample of the source, or all of them when it was just opened.
+     * @throws IOException When the display is gone or can not be read.
+     */
+    public static Frame sample(VirtualChannel channel, String id, int displayNumber, DisplayBackend backend,
+            long idleMillis) throws IOException, InterruptedException {
+        ScreenCheckpoints.Target target = new ScreenCheckpoints.Target();
+        return channel.call(new Sample(id, displayNumber, backend.capture(displayNumber, target), target, idleMillis));
+    }
+
+    /**
+     * Close source on the node, if it is open.
+     */
+    public static void close(VirtualChannel channel, String id) throws IOException, InterruptedException {
+        channel.call(new Close(id));
+    }
+
+    /**
+     * Tiles of the display that have changed.
+     */
+    /*package*/ static final class Frame implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Source was just opened or the screen resized, tiles not sent now are gone.
+         */
+        /*package*/ final boolean full;
+        /*package*/ final int width;
+        /*package*/ final int height;
+        /**
+         * Bounds of tiles as x, y, width and height.
+         */
+        /*package*/ final List<int[]> bounds = new ArrayList<int[]>();
+        /**
+         * JPEG image of tiles.
+         */
+        /*package*/ final List<byte[]> images = new ArrayList<byte[]>();
+
+        /*package*/ Frame(boolean full, int width, int height) {
+            this.full = full;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static final class Sample implements Callable<Frame, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+        private final int displayNumber;
+        private final Callable<Void, IOException> capture;
+        private final ScreenCheckpoints.Target target;
+        private final long idleMillis;
+
+        private Sample(String id, int displayNumber, Callable<Void, IOException> capture, ScreenCheckpoints.Target target, long idleMillis) {
+            this.id = id;
+            this.displayNumber = displayNumber;
+            this.capture = capture;
+            this.target = target;
+            this.idleMillis = idleMillis;
+        }
+
+        public Frame call() throws IOException {
+            if (!DisplayScanner.lock(displayNumber).exists()) {
+                close(id);
+                throw new IOException("Display :" + displayNumber + " is gone");
+            }
+
+            Source source = SOURCES.get(id);
+            if (source == null) {
+                source = Source.open(id, displayNumber, capture == null);
+                SOURCES.put(id, source);
+                source.future = REAPER.scheduleWithFixedDelay(source, idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+            }
+            try {
+                return source.sample(capture, target, idleMillis);
+            } catch (IOException e) {
+                close(id);
+                throw e;
+            }
+        }
+    }
+
+    private static final class Close implements Callable<Void, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+
+        private Close(String id) {
+            this.id = id;
+        }
+
+        public Void call() {
+            close(id);
+            return null;
+        }
+    }
+
+    private static void close(String id) {
+        Source source = SOURCES.remove(id);
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    private static final class Source implements Runnable {
+        private final String id;
+        /**
+         * Connection to the server, or null when the display is read by capture of the backend.
+         */
+        private final RfbClient client;
+
+        /**
+         * Pixels as last sent, or null when nothing was sent yet.
+         */
+        private int[] sent;
+        private int width;
+        private int height;
+        private long idleMillis;
+        private long lastSample;
+
+        private ScheduledFuture<?> future;
+
+        private Source(String id, RfbClient client) {
+            this.id = id;
+            this.client = client;
+        }
+
+        /**
+         * @param rfbOnly The backend has no capture of its own.
+         */
+        private static Source open(String id, int displayNumber, boolean rfbOnly) throws IOException {
+            try {
+                return new Source(id, RfbClient.connect(displayNumber, TIMEOUT));
+            } catch (IOException e) {
+                if (rfbOnly) throw e;
+
+                LOGGER.log(Level.FINE, "Reading display :" + displayNumber + " by capture of its backend", e);
+                return new Source(id, null);
+            }
+        }
+
+        private synchronized Frame sample(Callable<Void, IOException> capture, ScreenCheckpoints.Target target, long idleMillis) throws IOException {
+            this.idleMillis = idleMillis;
+            this.lastSample = System.currentTimeMillis();
+
+            int[] pixels;
+            List<Rectangle> updated;
+            if (client != null) {
+                if (sent == null) {
+                    updated = client.update(false);
+                } else {
+                    updated = client.poll();
+                    if (updated == null) return new Frame(false, width, height); // No change yet
+                }
+                client.requestUpdate(true);
+                pixels = client.pixels();
+                resize(client.getWidth(), client.getHeight());
+            } else {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                target.out = buf;
+                try {
+                    capture.call();
+                } finally {
+                    target.out = null;
+                }
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(buf.toByteArray()));
+                if (image == null) throw new IOException("Unable to decode capture of the display");
+                resize(image.getWidth(), image.getHeight());
+                pixels = image.getRGB(0, 0, width, height, null, 0, width);
+                updated = new ArrayList<Rectangle>();
+                updated.add(new Rectangle(0, 0, width, height));
+            }
+
+            boolean full = sent == null;
+            if (full) {
+                sent = new int[width * height];
+            }
+            Frame frame = new Frame(full, width, height);
+            for (int ty = 0; ty < height; ty += TILE) {
+                for (int tx = 0; tx < width; tx += TILE) {
+                    Rectangle tile = new Rectangle(tx, ty, Math.min(TILE, width - tx), Math.min(TILE, height - ty));
+                    if ((full || intersects(tile, updated)) && (copy(pixels, tile) || full)) {
+                        frame.bounds.add(new int[] {tile.x, tile.y, tile.width, tile.height});
+                        frame.images.add(encode(tile));
+                    }
+                }
+            }
+            return frame;
+        }
+
+        /**
+         * Forget what was sent when the screen size changes.
+         */
+        private void resize(int width, int height) {
+            if (width != this.width || height != this.height) {
+                this.width = width;
+                this.height = height;
+                sent = null;
+            }
+        }
+
+        private static boolean intersects(Rectangle tile, List<Rectangle> updated) {
+            for (Rectangle r: updated) {
+                if (tile.intersects(r)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Copy pixels of the tile to those sent.
+         *
+         * @return false when they are the same.
+         */
+        private boolean copy(int[] pixels, Rectangle tile) {
+            boolean changed = false;
+            for (int y = tile.y; y < tile.y + tile.height; y++) {
+                int offset = y * width + tile.x;
+                for (int x = 0; x < tile.width; x++) {
+                    if (sent[offset + x] != pixels[offset + x]) {
+                        sent[offset + x] = pixels[offset + x];
+                        changed = true;
+                    }
+                }
+            }
+            return changed;
+        }
+
+        private byte[] encode(Rectangle tile) throws IOException {
+            BufferedImage image = new BufferedImage(tile.width, tile.height, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, tile.width, tile.height, sent, tile.y * width + tile.x, width);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (!ImageIO.write(image, "jpg", out)) throw new IOException("No JPEG encoder available");
+            return out.toByteArray();
+        }
+
+        /**
+         * Close the source once it is idle.
+         */
+        public void run() {
+            synchronized (this) {
+                if (System.currentTimeMillis() - lastSample < idleMillis) return;
+            }
+            LOGGER.log(Level.FINE, "Closing idle live view {0}", id);
+            LiveFrames.close(id);
+        }
+
+        private synchronized void close() {
+            if (future != null) {
+                future.cancel(false);
+            }
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close live view " + id, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TransientBuildActionFactory;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import org.acegisecurity.Authentication;
+import org.acegisecurity.providers.anonymous.AnonymousAuthenticationToken;
+import org.apache.commons.codec.binary.Base64;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Displays of a running build, shown on its page without connecting to the node.
+ *
+ * The page polls for tiles changed since the frame it has drawn. A display is sampled by {@link LiveFrames}
+ * only when polled, at most {@link Xvnc.DescriptorImpl#liveViewFrameRate} times a second, and displays of a
+ * node all together at most {@link Xvnc.DescriptorImpl#liveViewNodeFrameRate} times a second. Tiles of a
+ * display are kept once on the controller, so any number of viewers costs the node a single sample; viewers
+ * polling in between, or over the node limit, get what was sampled last. Every viewer is told when to poll
+ * next so it gets at most the frame rate and {@link #BANDWIDTH} kilobytes a second; a viewer is the user, or
+ * the HTTP session when anonymous. Displays not polled for {@link #IDLE} seconds are forgotten on both sides.
+ *
+ * The action is contributed to running builds by {@link Factory}, so nothing is stored with the build.
+ */
+@Restricted(NoExternalUse.class)
+public final class LiveView implements Action {
+
+    private static final Logger LOGGER = Logger.getLogger(LiveView.class.getName());
+
+    /**
+     * Kilobytes a second sent to a viewer, at most.
+     */
+    /*package*/ static int BANDWIDTH = Integer.getInteger(LiveView.class.getName() + ".bandwidth", 512);
+
+    /**
+     * Seconds a display is sampled for after the last viewer has polled.
+     */
+    /*package*/ static int IDLE = Integer.getInteger(LiveView.class.getName() + ".idle", 30);
+
+    /**
+     * Viewed displays by build and display index.
+     */
+    private static final Map<String, Feed> FEEDS = new ConcurrentHashMap<String, Feed>();
+
+    private final AbstractBuild<?, ?> build;
+
+    /*package*/ LiveView(AbstractBuild<?, ?> build) {
+        this.build = build;
+    }
+
+    public String getIconFileName() {
+        return isAvailable() && build.hasPermission(Item.WORKSPACE) ? "monitor.png" : null;
+    }
+
+    public String getDisplayName() {
+        return Messages.Xvnc_LIVE_VIEW();
+    }
+
+    public String getUrlName() {
+        return "xvnc-live";
+    }
+
+    public AbstractBuild<?, ?> getBuild() {
+        return build;
+    }
+
+    /**
+     * Numbers of the displays of the build, by their index.
+     */
+    public List<Integer> getDisplays() {
+        List<Integer> displays = new ArrayList<Integer>();
+        for (XvncEnvironment env: environments()) {
+            displays.add(env.displayNumber());
+        }
+        return displays;
+    }
+
+    private boolean isAvailable() {
+        return build.isBuilding() && config().liveViewFrameRate > 0;
+    }
+
+    private List<XvncEnvironment> environments() {
+        List<XvncEnvironment> envs = new ArrayList<XvncEnvironment>();
+        for (XvncEnvironment env: build.getActions(XvncEnvironment.class)) {
+            if (!env.released()) {
+                envs.add(env);
+            }
+        }
+        return envs;
+    }
+
+    /**
+     * Tiles of the display changed since frame <tt>since</tt> as JSON, together with the frame they bring the
+     * viewer to and milliseconds to wait before polling again.
+     */
+    public void doTiles(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        build.checkPermission(Item.WORKSPACE);
+
+        int index = parse(req.getParameter("display"), -1);
+        long since = parse(req.getParameter("since"), -1);
+        XvncEnvironment env = null;
+        for (XvncEnvironment e: environments()) {
+            if (e.index() == index) env = e;
+        }
+        Node node = build.getBuiltOn();
+        Computer computer = node == null ? null : node.toComputer();
+        VirtualChannel channel = computer == null ? null : computer.getChannel();
+        if (!isAvailable() || env == null || channel == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        Xvnc.DescriptorImpl config = config();
+        long period = 1000L / config.liveViewFrameRate;
+        String key = build.getExternalizableId() + "#" + index;
+        Feed feed = feed(key, channel);
+        String viewer = viewer(req);
+
+        long now = System.currentTimeMillis();
+        boolean sample;
+        synchronized (feed) {
+            Long allowed = feed.viewers.get(viewer);
+            if (allowed != null && now < allowed) {
+                // Polled too early; nothing new for this viewer yet
+                write(rsp, since, feed.width, feed.height, allowed - now, new ArrayList<Tile>());
+                return;
+            }
+            feed.polled = now;
+            sample = !feed.sampling && now >= feed.nextSample;
+            if (sample) {
+                feed.sampling = true;
+                feed.nextSample = now + period;
+            }
+        }
+
+        if (sample) {
+            try {
+                DisplayAllocator.Property property = node.getNodeProperties().get(DisplayAllocator.Property.class);
+                if (property == null || property.getLiveView().acquire(now, config.liveViewNodeFrameRate)) {
+                    feed.add(LiveFrames.sample(channel, feed.id, env.displayNumber(), env.backend(), IDLE * 1000L));
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to sample display :" + env.displayNumber() + " of " + build, e);
+                feed.drop();
+                rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            } finally {
+                synchronized (feed) {
+                    feed.sampling = false;
+                }
+            }
+        }
+
+        List<Tile> tiles;
+        long frame;
+        int width, height;
+        synchronized (feed) {
+            frame = feed.frame;
+            width = feed.width;
+            height = feed.height;
+            tiles = feed.since(since);
+        }
+        long bytes = 0;
+        for (Tile tile: tiles) {
+            bytes += tile.image.length;
+        }
+        long next = Math.max(period, bytes * 4 / 3 * 1000 / (Math.max(1, BANDWIDTH) * 1024L));
+        synchronized (feed) {
+            feed.viewers.put(viewer, now + next);
+        }
+        write(rsp, frame, width, height, next, tiles);
+    }
+
+    private static void write(StaplerResponse rsp, long frame, int width, int height, long next, List<Tile> tiles) throws IOException {
+        rsp.setContentType("application/json; charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = rsp.getWriter();
+        out.print("{\"frame\":" + frame + ",\"width\":" + width + ",\"height\":" + height + ",\"next\":" + next + ",\"tiles\":[");
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile tile = tiles.get(i);
+            if (i > 0) out.print(',');
+            out.print("[" + tile.x + "," + tile.y + ",\"");
+            out.print(new String(Base64.encodeBase64(tile.image), "US-ASCII"));
+            out.print("\"]");
+        }
+        out.print("]}");
+        out.flush();
+    }
+
+    /**
+     * The authenticated user, or the session of an anonymous one; the client can not pick it.
+     */
+    private static String viewer(StaplerRequest req) {
+        Authentication auth = Jenkins.getAuthentication();
+        if (auth instanceof AnonymousAuthenticationToken) {
+            return "session:" + req.getSession(true).getId();
+        }
+        return "user:" + auth.getName();
+    }
+
+    private static int parse(String value, int defaultValue) {
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static Xvnc.DescriptorImpl config() {
+        return Jenkins.getInstance().getDescriptorByType(Xvnc.DescriptorImpl.class);
+    }
+
+    private static Feed feed(String key, VirtualChannel channel) {
+        synchronized (FEEDS) {
+            Feed feed = FEEDS.get(key);
+            if (feed == null) {
+                feed = new Feed(key, channel);
+                FEEDS.put(key, feed);
+                feed.future = Timer.get().scheduleWithFixedDelay(feed, IDLE, IDLE, TimeUnit.SECONDS);
+            }
+            return feed;
+        }
+    }
+
+    /**
+     * Samples of all displays of a node, limited together.
+     */
+    /*package*/ static final class Throttle {
+        private long next;
+
+        /**
+         * @param rate Samples a second, 0 for no limit.
+         * @return false when the display is not to be sampled now.
+         */
+        /*package*/ synchronized boolean acquire(long now, int rate) {
+            if (rate <= 0) return true;
+            if (now < next) return false;
+
+            next = now + 1000L / rate;
+            return true;
+        }
+    }
+
+    private static final class Tile {
+        private final int x;
+        private final int y;
+        private final byte[] image;
+        /**
+         * Frame the tile has changed in.
+         */
+        private final long frame;
+
+        private Tile(int x, int y, byte[] image, long frame) {
+            this.x = x;
+            this.y = y;
+            this.image = image;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Tiles of a viewed display.
+     */
+    private static final class Feed implements Runnable {
+        private final String key;
+        /**
+         * Channel of the node the display runs on.
+         */
+        private final VirtualChannel channel;
+        /**
+         * Id of {@link LiveFrames} source on the node.
+         */
+        private final String id = UUID.randomUUID().toString();
+
+        /**
+         * Frames sampled with changes.
+         */
+        private long frame;
+        /**
+         * Frame tiles were last all replaced in.
+         */
+        private long reset;
+        private int width;
+        private int height;
+        /**
+         * Latest tiles by position.
+         */
+        private final Map<Long, Tile> tiles = new LinkedHashMap<Long, Tile>();
+
+        private boolean sampling;
+        private long nextSample;
+        private long polled = System.currentTimeMillis();
+        /**
+         * Time viewers may poll again by viewer id.
+         */
+        private final Map<String, Long> viewers = new HashMap<String, Long>();
+
+        private ScheduledFuture<?> future;
+
+        private Feed(String key, VirtualChannel channel) {
+            this.key = key;
+            this.channel = channel;
+        }
+
+        private synchronized void add(LiveFrames.Frame sampled) {
+            if (!sampled.full && sampled.bounds.isEmpty()) return;
+
+            frame++;
+            if (sampled.full) {
+                tiles.clear();
+                reset = frame;
+                width = sampled.width;
+                height = sampled.height;
+            }
+            for (int i = 0; i < sampled.bounds.size(); i++) {
+                int[] bounds = sampled.bounds.get(i);
+                tiles.put((long) bounds[0] << 32 | bounds[1], new Tile(bounds[0], bounds[1], sampled.images.get(i), frame));
+            }
+        }
+
+        /**
+         * Tiles changed after given frame, or all of them when the viewer has not seen the current ones.
+         */
+        private synchronized List<Tile> since(long since) {
+            boolean all = since < reset || since > frame;
+            List<Tile> changed = new ArrayList<Tile>();
+            for (Tile tile: tiles.values()) {
+                if (all || tile.frame > since) {
+                    changed.add(tile);
+                }
+            }
+            return changed;
+        }
+
+        /**
+         * Forget the display once nobody has polled for it.
+         */
+        public void run() {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                for (Iterator<Long> it = viewers.values().iterator(); it.hasNext();) {
+                    if (now - it.next() > IDLE * 1000L) it.remove();
+                }
+                if (now - polled < IDLE * 1000L) return;
+            }
+            drop();
+        }
+
+        /**
+         * Stop watching the display and close its source on the node.
+         */
+        private void drop() {
+            synchronized (FEEDS) {
+                if (FEEDS.get(key) == this) {
+                    FEEDS.remove(key);
+                }
+            }
+            if (future != null) {
+                future.cancel(false);
+            }
+            try {
+                LiveFrames.close(channel, id);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close live view of " + key, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Adds the action to running builds of projects using Xvnc.
+     */
+    @Extension
+    public static final class Factory extends TransientBuildActionFactory {
+        @Override
+        public Collection<? extends Action> createFor(Run target) {
+            if (target instanceof AbstractBuild && target.isBuilding()) {
+                AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) target;
+                if (build.getProject() instanceof BuildableItemWithBuildWrappers
+                        && ((BuildableItemWithBuildWrappers) build.getProject()).getBuildWrappersList().get(Xvnc.class) != null) {
+                    return Collections.singleton(new LiveView(build));
+                }
+            }
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package hudson.plugins.xvnc;
+
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ProcessTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes X servers and lock files the plugin has left behind on a node.
+ *
+ * Only displays of orphaned {@link LeaseJournal} leases of the node are touched. Their server is killed,
+ * and its lock file removed once dead, only when the lock file still names the pid recorded when the lease
+ * was taken. A lock file naming another pid belongs to someone else, possibly in another container sharing
+ * <tt>/tmp</tt> whose pids mean nothing here, and is left alone. Servers of running builds, pooled servers
+ * and servers started by anyone else are left alone. Nothing is locked but the leases being cleaned up, so
+ * nodes are cleaned up concurrently and it is safe to do on every build start.
+ */
+final class OrphanCleaner {
+
+    private OrphanCleaner() {}
+
+    /**
+     * @return Number of leases released.
+     */
+    public static int cleanUp(Node node, VirtualChannel channel, TaskListener listener) throws IOException, InterruptedException {
+        LeaseJournal journal = LeaseJournal.get();
+        List<LeaseJournal.Lease> orphans = journal.claimOrphans(node);
+
+        HashMap<Integer, Integer> pids = new HashMap<Integer, Integer>();
+        for (LeaseJournal.Lease lease: orphans) {
+            pids.put(lease.displayNumber, lease.pid);
+        }
+
+        int released = 0;
+        BitSet gone = null;
+        try {
+            gone = channel.call(new Sweep(pids, DisplayTeardown.TIMEOUT * 1000L));
+        } finally {
+            DisplayAllocator allocator = DisplayAllocator.Property.of(node).getAllocator();
+            for (LeaseJournal.Lease lease: orphans) {
+                if (gone != null && gone.get(lease.displayNumber)) {
+                    listener.getLogger().println("Cleaned up Xvnc display :" + lease.displayNumber + " left behind by " + lease.build);
+                    allocator.free(lease.displayNumber);
+                    journal.released(node, lease.displayNumber);
+                    released++;
+                } else {
+                    allocator.reserve(lease.displayNumber);
+                    journal.unclaim(lease);
+                }
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Kill servers of orphaned leases and delete their lock files once dead.
+     *
+     * @return Displays of orphaned leases whose server is gone.
+     */
+    private static final class Sweep implements Callable<BitSet, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Recorded pid by display number.
+         */
+        private final HashMap<Integer, Integer> pids;
+        private final long timeoutMillis;
+
+        private Sweep(HashMap<Integer, Integer> pids, long timeoutMillis) {
+            this.pids = pids;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public BitSet call() throws IOException {
+            BitSet gone = new BitSet();
+            for (Map.Entry<Integer, Integer> entry: pids.entrySet()) {
+                int displayNumber = entry.getKey();
+                File lock = DisplayScanner.lock(displayNumber);
+                if (!lock.exists()) {
+                    gone.set(displayNumber);
+                    continue;
+                }
+
+                int pid = DisplayScanner.readPid(lock);
+                int recorded = entry.getValue();
+                if (pid > 0 && recorded > 0 && pid != recorded) {
+                    gone.set(displayNumber); // Ours is gone, the number is taken by someone else
+                    continue;
+                }
+
+                if (pid > 0 && pid == recorded && DisplayScanner.isAlive(pid)) {
+                    kill(pid);
+                }
+                if (removeIfDead(displayNumber, lock)) {
+                    gone.set(displayNumber);
+                }
+            }
+            return gone;
+        }
+
+        private void kill(int pid) throws IOException {
+            try {
+                ProcessTree.OSProcess process = ProcessTree.get().get(pid);
+                if (process != null) {
+                    process.kill();
+                }
+
+                long deadline = System.currentTimeMillis() + timeoutMillis;
+                while (DisplayScanner.isAlive(pid) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(100);
+                }
+            } catch (InterruptedException e) {
+                throw (IOException) new IOException("Interrupted killing " + pid).initCause(e);
+            }
+        }
+
+        /**
+         * Delete lock file and socket of dead server of the lease. Lock of unknown or live pid is left alone.
+         */
+        private static boolean removeIfDead(int displayNumber, File lock) {
+            int pid = DisplayScanner.readPid(lock);
+            if (pid <= 0 || DisplayScanner.isAlive(pid)) return false;
+
+            DisplayReadiness.socket(displayNumber).delete();
+            lock.delete();
+            return true;
+        }
+    }
+}
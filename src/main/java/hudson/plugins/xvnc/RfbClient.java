@@ -0,0 +1,327 @@
+package hudson.plugins.xvnc;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Minimal RFB (VNC protocol) client reading the framebuffer of an Xvnc server running on this machine.
+ *
+ * Supports protocol versions 3.3 to 3.8 with no authentication or VNC authentication using the
+ * <tt>~/.vnc/passwd</tt> file of the user. Pixels are requested in raw encoding, which is cheap for the
+ * server and costs nothing but bandwidth on the loopback interface.
+ */
+final class RfbClient {
+
+    private static final int SECURITY_NONE = 1;
+    private static final int SECURITY_VNC = 2;
+
+    private static final int ENCODING_RAW = 0;
+
+    /**
+     * Key <tt>vncpasswd</tt> obfuscates stored passwords with.
+     */
+    private static final byte[] PASSWD_KEY = {23, 82, 107, 6, 35, 78, 88, 7};
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private final int width;
+    private final int height;
+
+    /**
+     * Framebuffer content as 0xRRGGBB.
+     */
+    private final int[] pixels;
+
+    private byte[] buffer = new byte[0];
+
+    private RfbClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        handshake();
+
+        out.writeByte(1); // Shared; do not disconnect other viewers
+        out.flush();
+
+        width = in.readUnsignedShort();
+        height = in.readUnsignedShort();
+        in.readFully(new byte[16]); // Server pixel format; we set our own
+        in.readFully(new byte[in.readInt()]); // Desktop name
+        pixels = new int[width * height];
+
+        setPixelFormat();
+        setEncodings(ENCODING_RAW);
+    }
+
+    /**
+     * Connect to Xvnc server of given display on loopback interface.
+     */
+    public static RfbClient connect(int displayNumber, int timeoutMillis) throws IOException {
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), 5900 + displayNumber);
+        try {
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            return new RfbClient(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Request framebuffer update and wait for it.
+     *
+     * @param incremental Only send regions changed since last update. Server responds once there is a change.
+     * @return Updated regions.
+     */
+    public List<Rectangle> update(boolean incremental) throws IOException {
+        requestUpdate(incremental);
+        for (;;) {
+            List<Rectangle> updated = readMessage();
+            if (updated != null) return updated;
+        }
+    }
+
+    /**
+     * Ask server to send framebuffer update once there is one. Use {@link #poll()} to read it.
+     */
+    public void requestUpdate(boolean incremental) throws IOException {
+        out.writeByte(3); // FramebufferUpdateRequest
+        out.writeByte(incremental ? 1 : 0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.flush();
+    }
+
+    /**
+     * Read requested framebuffer update without waiting for it to be sent.
+     *
+     * @return Updated regions, or null if the server has not started sending the update yet.
+     */
+    public List<Rectangle> poll() throws IOException {
+        while (in.available() > 0) {
+            List<Rectangle> updated = readMessage();
+            if (updated != null) return updated;
+        }
+        return null;
+    }
+
+    /**
+     * @return Updated regions, or null for other messages.
+     */
+    private List<Rectangle> readMessage() throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case 0: // FramebufferUpdate
+                return readUpdate();
+            case 1: // SetColourMapEntries; not used with true color
+                in.readUnsignedByte();
+                in.readUnsignedShort();
+                skip(in.readUnsignedShort() * 6);
+                return null;
+            case 2: // Bell
+                return null;
+            case 3: // ServerCutText
+                skip(3);
+                skip(in.readInt());
+                return null;
+            default:
+                throw new IOException("Unsupported RFB message type " + type);
+        }
+    }
+
+    /**
+     * Snapshot of the whole framebuffer.
+     */
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        return image;
+    }
+
+    /**
+     * Framebuffer content as 0xRRGGBB, row by row. Changes with every {@link #update}.
+     */
+    /*package*/ int[] pixels() {
+        return pixels;
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void handshake() throws IOException {
+        byte[] version = new byte[12];
+        in.readFully(version);
+        String serverVersion = new String(version, "US-ASCII");
+        if (!serverVersion.startsWith("RFB 003.")) {
+            throw new IOException("Not an RFB server: " + serverVersion.trim());
+        }
+        int minor = Integer.parseInt(serverVersion.substring(8, 11));
+        minor = minor >= 8 ? 8 : minor >= 7 ? 7 : 3;
+        out.write(("RFB 003.00" + minor + "\n").getBytes("US-ASCII"));
+        out.flush();
+
+        int security;
+        if (minor == 3) {
+            security = in.readInt();
+            if (security == 0) throw new IOException("RFB connection refused: " + readReason());
+        } else {
+            int count = in.readUnsignedByte();
+            if (count == 0) throw new IOException("RFB connection refused: " + readReason());
+            byte[] types = new byte[count];
+            in.readFully(types);
+            security = -1;
+            for (byte type: types) {
+                if (type == SECURITY_NONE) {
+                    security = SECURITY_NONE;
+                    break;
+                }
+                if (type == SECURITY_VNC) {
+                    security = SECURITY_VNC;
+                }
+            }
+            if (security < 0) throw new IOException("No supported RFB security type offered");
+            out.writeByte(security);
+            out.flush();
+        }
+
+        if (security == SECURITY_VNC) {
+            byte[] challenge = new byte[16];
+            in.readFully(challenge);
+            out.write(des(password(), challenge, Cipher.ENCRYPT_MODE));
+            out.flush();
+        } else if (security != SECURITY_NONE) {
+            throw new IOException("Unsupported RFB security type " + security);
+        }
+
+        if (security == SECURITY_VNC || minor == 8) {
+            if (in.readInt() != 0) {
+                throw new IOException("RFB authentication failed" + (minor == 8 ? ": " + readReason() : ""));
+            }
+        }
+    }
+
+    private String readReason() throws IOException {
+        byte[] reason = new byte[in.readInt()];
+        in.readFully(reason);
+        return new String(reason, "UTF-8");
+    }
+
+    private void setPixelFormat() throws IOException {
+        out.writeByte(0); // SetPixelFormat
+        out.write(new byte[3]);
+        out.writeByte(32); // bits per pixel
+        out.writeByte(24); // depth
+        out.writeByte(0); // little endian
+        out.writeByte(1); // true color
+        out.writeShort(255);
+        out.writeShort(255);
+        out.writeShort(255);
+        out.writeByte(16); // red shift
+        out.writeByte(8); // green shift
+        out.writeByte(0); // blue shift
+        out.write(new byte[3]);
+    }
+
+    private void setEncodings(int... encodings) throws IOException {
+        out.writeByte(2); // SetEncodings
+        out.writeByte(0);
+        out.writeShort(encodings.length);
+        for (int encoding: encodings) {
+            out.writeInt(encoding);
+        }
+        out.flush();
+    }
+
+    private List<Rectangle> readUpdate() throws IOException {
+        in.readUnsignedByte();
+        int count = in.readUnsignedShort();
+        List<Rectangle> updated = new ArrayList<Rectangle>(count);
+        for (int i = 0; i < count; i++) {
+            Rectangle r = new Rectangle(in.readUnsignedShort(), in.readUnsignedShort(), in.readUnsignedShort(), in.readUnsignedShort());
+            int encoding = in.readInt();
+            if (encoding != ENCODING_RAW) throw new IOException("Unsupported RFB encoding " + encoding);
+            if (r.x + r.width > width || r.y + r.height > height) throw new IOException("Rectangle out of framebuffer: " + r);
+
+            int rowBytes = r.width * 4;
+            if (buffer.length < rowBytes) {
+                buffer = new byte[rowBytes];
+            }
+            for (int y = r.y; y < r.y + r.height; y++) {
+                in.readFully(buffer, 0, rowBytes);
+                int offset = y * width + r.x;
+                for (int x = 0, b = 0; x < r.width; x++, b += 4) {
+                    pixels[offset + x] = (buffer[b + 2] & 0xff) << 16 | (buffer[b + 1] & 0xff) << 8 | (buffer[b] & 0xff);
+                }
+            }
+            updated.add(r);
+        }
+        return updated;
+    }
+
+    private void skip(int bytes) throws IOException {
+        in.readFully(new byte[bytes]);
+    }
+
+    /**
+     * Password from <tt>~/.vnc/passwd</tt> of current user.
+     */
+    private static byte[] password() throws IOException {
+        File passwd = new File(System.getProperty("user.home"), ".vnc/passwd");
+        byte[] obfuscated = new byte[8];
+        InputStream is = new FileInputStream(passwd);
+        try {
+            new DataInputStream(is).readFully(obfuscated);
+        } finally {
+            is.close();
+        }
+        return des(PASSWD_KEY, obfuscated, Cipher.DECRYPT_MODE);
+    }
+
+    /**
+     * DES as used by VNC: key bits are mirrored in every byte.
+     */
+    private static byte[] des(byte[] key, byte[] data, int mode) throws IOException {
+        byte[] mirrored = new byte[8];
+        for (int i = 0; i < mirrored.length && i < key.length; i++) {
+            mirrored[i] = (byte) (Integer.reverse(key[i] & 0xff) >>> 24);
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("DES/ECB/NoPadding");
+            cipher.init(mode, new SecretKeySpec(mirrored, "DES"));
+            return cipher.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw (IOException) new IOException("DES unavailable").initCause(e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package hudson.plugins.xvnc;
+
+import hudson.Util;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Geometry and depth of the screen of a display.
+ *
+ * The framebuffer the server keeps for the screen is the bulk of its memory, so it is what node memory
+ * budgets are accounted in.
+ */
+public final class Screen {
+
+    /**
+     * Screen of <tt>vncserver</tt> and <tt>Xvfb</tt> unless told otherwise.
+     */
+    public static final Screen DEFAULT = new Screen(1024, 768, 24);
+
+    private static final Pattern FORMAT = Pattern.compile("(\\d+)x(\\d+)(?:x(\\d+))?");
+
+    public final int width;
+    public final int height;
+    public final int depth;
+
+    public Screen(int width, int height, int depth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+    }
+
+    /**
+     * Parse <tt>WxH</tt> or <tt>WxHxD</tt>.
+     *
+     * @param depth Depth when not given.
+     * @return The screen, or null when the value is empty or malformed.
+     */
+    public static Screen parse(String value, int depth) {
+        value = Util.fixEmptyAndTrim(value);
+        if (value == null) return null;
+
+        Matcher m = FORMAT.matcher(value);
+        if (!m.matches()) return null;
+
+        try {
+            return new Screen(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)),
+                    m.group(3) == null ? depth : Integer.parseInt(m.group(3)));
+        } catch (NumberFormatException e) {
+            return null; // Too many digits
+        }
+    }
+
+    /**
+     * @return <tt>WxH</tt>
+     */
+    public String getGeometry() {
+        return width + "x" + height;
+    }
+
+    /**
+     * Bytes of framebuffer memory. Pixels deeper than 16 bits are stored in 32, like X servers do.
+     */
+    public long getFramebufferSize() {
+        int bytesPerPixel = depth <= 8 ? 1 : depth <= 16 ? 2 : 4;
+        return (long) width * height * bytesPerPixel;
+    }
+
+    /**
+     * @return <tt>WxHxD</tt>
+     */
+    @Override
+    public String toString() {
+        return getGeometry() + "x" + depth;
+    }
+}
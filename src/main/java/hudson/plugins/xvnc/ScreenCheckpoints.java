@@ -0,0 +1,350 @@
+package hudson.plugins.xvnc;
+
+import hudson.Util;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Takes screenshots of a display when the build asks for them, keeping only those that show something new.
+ *
+ * The build asks by creating a file named after the checkpoint in the directory <tt>XVNC_CHECKPOINTS</tt>
+ * points to; the file is deleted once the screenshot is taken. Directories are watched in the node JVM by
+ * a single thread shared by all builds. Screenshot identical to the last one kept is dropped by comparing
+ * their hashes, so kept images and the transfer to the controller only grow when the display changes.
+ */
+final class ScreenCheckpoints {
+
+    private static final Logger LOGGER = Logger.getLogger(ScreenCheckpoints.class.getName());
+
+    private static final long PERIOD = 250;
+    private static final long TIMEOUT = 30000;
+
+    /**
+     * Screenshots kept per build, at most.
+     */
+    /*package*/ static int MAX = Integer.getInteger(ScreenCheckpoints.class.getName() + ".max", 100);
+
+    /**
+     * Node JVM scheduler shared by all watchers.
+     */
+    private static final ScheduledExecutorService WATCHERS = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+    /**
+     * Watchers running in this JVM by id.
+     */
+    private static final Map<String, Watcher> CHECKPOINTS = new ConcurrentHashMap<String, Watcher>();
+
+    private ScreenCheckpoints() {}
+
+    /**
+     * Start watching for checkpoints of the display on the node.
+     *
+     * @param dir Directory on the node the build creates checkpoint files in.
+     * @return Watcher id.
+     */
+    public static String start(VirtualChannel channel, int displayNumber, DisplayBackend backend, String dir,
+            Map<String, String> xauthorityEnv) throws IOException, InterruptedException {
+        Target target = new Target();
+        return channel.call(new Start(displayNumber, backend.capture(displayNumber, target), target, dir, xauthorityEnv));
+    }
+
+    /**
+     * Callable stopping the watcher in the node JVM and deleting its directory. Screenshots kept are written
+     * to out as ZIP archive unless it is null.
+     *
+     * @return Screenshots written and dropped as unchanged.
+     */
+    /*package*/ static Callable<int[], IOException> stop(String id, String dir, OutputStream out) {
+        return new Stop(id, dir, out);
+    }
+
+    /**
+     * Stream the backend capture writes to, pointed to a new buffer before every screenshot.
+     */
+    /*package*/ static final class Target extends OutputStream implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /*package*/ transient OutputStream out;
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            // Buffer is read once the capture is done
+        }
+    }
+
+    private static final class Start implements Callable<String, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int displayNumber;
+        private final Callable<Void, IOException> capture;
+        private final Target target;
+        private final String dir;
+        private final HashMap<String, String> xauthorityEnv;
+
+        private Start(int displayNumber, Callable<Void, IOException> capture, Target target, String dir, Map<String, String> xauthorityEnv) {
+            this.displayNumber = displayNumber;
+            this.capture = capture;
+            this.target = target;
+            this.dir = dir;
+            this.xauthorityEnv = new HashMap<String, String>(xauthorityEnv);
+        }
+
+        public String call() throws IOException {
+            File directory = new File(dir);
+            if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create " + directory);
+
+            String id = UUID.randomUUID().toString();
+            Watcher watcher = new Watcher(id, displayNumber, capture, target, directory, xauthorityEnv);
+            CHECKPOINTS.put(id, watcher);
+            watcher.future = WATCHERS.scheduleWithFixedDelay(watcher, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+            return id;
+        }
+    }
+
+    private static final class Stop implements Callable<int[], IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+        private final String dir;
+        private final OutputStream out;
+
+        private Stop(String id, String dir, OutputStream out) {
+            this.id = id;
+            this.dir = dir;
+            this.out = out;
+        }
+
+        public int[] call() throws IOException {
+            int dropped = 0;
+            Watcher watcher = CHECKPOINTS.remove(id);
+            if (watcher != null) {
+                watcher.stop();
+                watcher.run(); // Checkpoints requested just before the build ended
+                dropped = watcher.dropped;
+            }
+
+            File directory = new File(dir);
+            try {
+                File[] screenshots = directory.listFiles(new FileFilter() {
+                    public boolean accept(File file) {
+                        return file.isFile() && !file.getName().startsWith(".") && file.getName().endsWith(".jpg");
+                    }
+                });
+                if (out == null || screenshots == null || screenshots.length == 0) return new int[] {0, dropped};
+
+                Arrays.sort(screenshots);
+                ZipOutputStream zip = new ZipOutputStream(out);
+                try {
+                    byte[] buf = new byte[8192];
+                    for (File screenshot: screenshots) {
+                        zip.putNextEntry(new ZipEntry(screenshot.getName()));
+                        InputStream in = new FileInputStream(screenshot);
+                        try {
+                            for (int read; (read = in.read(buf)) >= 0;) {
+                                zip.write(buf, 0, read);
+                            }
+                        } finally {
+                            in.close();
+                        }
+                        zip.closeEntry();
+                    }
+                } finally {
+                    zip.close();
+                }
+                return new int[] {screenshots.length, dropped};
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+                Util.deleteRecursive(directory);
+            }
+        }
+    }
+
+    private static final class Watcher implements Runnable {
+        private final String id;
+        private final int displayNumber;
+        private final Callable<Void, IOException> capture;
+        private final Target target;
+        private final File dir;
+        private final Map<String, String> xauthorityEnv;
+
+        /**
+         * Hash of the last screenshot kept.
+         */
+        private byte[] last;
+        private int kept = 0;
+        private int dropped = 0;
+        /**
+         * Backend has failed to capture the display, <tt>import</tt> is used since.
+         */
+        private boolean importing;
+
+        private ScheduledFuture<?> future;
+
+        private Watcher(String id, int displayNumber, Callable<Void, IOException> capture, Target target, File dir, Map<String, String> xauthorityEnv) {
+            this.id = id;
+            this.displayNumber = displayNumber;
+            this.capture = capture;
+            this.target = target;
+            this.dir = dir;
+            this.xauthorityEnv = xauthorityEnv;
+            this.importing = capture == null;
+        }
+
+        public synchronized void run() {
+            File[] requests = dir.listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    return file.isFile() && !file.getName().startsWith(".") && !file.getName().endsWith(".jpg");
+                }
+            });
+            if (requests == null || !DisplayScanner.lock(displayNumber).exists()) {
+                // Workspace wiped or display gone without teardown; whatever is left is collected by Stop
+                CHECKPOINTS.remove(id);
+                stop();
+                return;
+            }
+
+            Arrays.sort(requests, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long diff = a.lastModified() - b.lastModified();
+                    return diff != 0 ? (diff < 0 ? -1 : 1) : a.getName().compareTo(b.getName());
+                }
+            });
+            for (File request: requests) {
+                try {
+                    take(request.getName());
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to take checkpoint " + request.getName() + " of display :" + displayNumber, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                request.delete();
+            }
+        }
+
+        private void stop() {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        private void take(String name) throws IOException, InterruptedException {
+            byte[] image = capture();
+            byte[] hash;
+            try {
+                hash = MessageDigest.getInstance("SHA-1").digest(image);
+            } catch (NoSuchAlgorithmException e) {
+                throw (IOException) new IOException("No SHA-1").initCause(e);
+            }
+            if (Arrays.equals(hash, last) || kept >= MAX) {
+                dropped++;
+                return;
+            }
+
+            last = hash;
+            kept++;
+            File screenshot = new File(dir, String.format("%03d-%s.jpg", kept, name.replaceAll("[^A-Za-z0-9._-]", "_")));
+            OutputStream out = new FileOutputStream(screenshot);
+            try {
+                out.write(image);
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * @return JPEG image of the display.
+         */
+        private byte[] capture() throws IOException, InterruptedException {
+            if (!importing) {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                target.out = buf;
+                try {
+                    capture.call();
+                    return buf.toByteArray();
+                } catch (IOException e) {
+                    // Not supported by the server, or one we can not authenticate to
+                    LOGGER.log(Level.FINE, "Falling back to import for display :" + displayNumber, e);
+                    importing = true;
+                } finally {
+                    target.out = null;
+                }
+            }
+
+            File screenshot = new File(dir, ".import.jpg");
+            try {
+                ProcessBuilder builder = new ProcessBuilder("import", "-window", "root", "-display", ":" + displayNumber, screenshot.getPath());
+                builder.environment().putAll(xauthorityEnv);
+                Process process = builder.redirectErrorStream(true).start();
+                process.getOutputStream().close();
+                process.getInputStream().close();
+                long deadline = System.currentTimeMillis() + TIMEOUT;
+                for (;;) {
+                    try {
+                        if (process.exitValue() != 0) throw new IOException("import exited with " + process.exitValue());
+                        break;
+                    } catch (IllegalThreadStateException running) {
+                        if (System.currentTimeMillis() > deadline) {
+                            process.destroy();
+                            throw new IOException("import timed out");
+                        }
+                        Thread.sleep(50);
+                    }
+                }
+
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                InputStream in = new FileInputStream(screenshot);
+                try {
+                    byte[] b = new byte[8192];
+                    for (int read; (read = in.read(b)) >= 0;) {
+                        buf.write(b, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+                return buf.toByteArray();
+            } finally {
+                screenshot.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package hudson.plugins.xvnc;
+
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Records the last seconds of a display in the node JVM so they can be saved when the build fails.
+ *
+ * The display is sampled over RFB at a fixed frame rate, asking the server for changed regions only.
+ * Recording keeps a keyframe of the display as it was at the beginning of the window and the changed
+ * regions since then. Regions older than the window, or over the memory limit, are folded into the
+ * keyframe. The memory limit covers the framebuffer and the keyframe as well, so a display too large for it
+ * is not recorded at all. All recordings in the node JVM share {@link #SAMPLERS} threads, which caps their
+ * CPU use.
+ */
+final class ScreenRecorder {
+
+    private static final Logger LOGGER = Logger.getLogger(ScreenRecorder.class.getName());
+
+    private static final int SAMPLER_THREADS = 2;
+    private static final int TIMEOUT = 10000;
+
+    /**
+     * Node JVM scheduler shared by all recordings.
+     */
+    private static final ScheduledExecutorService SAMPLERS = Executors.newScheduledThreadPool(SAMPLER_THREADS, new DaemonThreadFactory());
+
+    /**
+     * Recordings running in this JVM by id.
+     */
+    private static final Map<String, Recording> RECORDINGS = new ConcurrentHashMap<String, Recording>();
+
+    private ScreenRecorder() {}
+
+    /**
+     * Start recording display on the node.
+     *
+     * @return Recording id.
+     * @throws IOException When the display can not be read over RFB.
+     */
+    public static String start(VirtualChannel channel, int displayNumber, int frameRate, int seconds, long maxBytes) throws IOException, InterruptedException {
+        return channel.call(new Start(displayNumber, frameRate, seconds, maxBytes));
+    }
+
+    /**
+     * Callable stopping the recording in the node JVM, writing it to out unless it is null.
+     */
+    /*package*/ static Callable<Boolean, IOException> stop(String id, OutputStream out) {
+        return new Stop(id, out);
+    }
+
+    private static final class Start implements Callable<String, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int displayNumber;
+        private final int frameRate;
+        private final int seconds;
+        private final long maxBytes;
+
+        private Start(int displayNumber, int frameRate, int seconds, long maxBytes) {
+            this.displayNumber = displayNumber;
+            this.frameRate = frameRate;
+            this.seconds = seconds;
+            this.maxBytes = maxBytes;
+        }
+
+        public String call() throws IOException {
+            RfbClient client = RfbClient.connect(displayNumber, TIMEOUT);
+            long fixed = fixedBytes(client.getWidth(), client.getHeight());
+            if (fixed >= maxBytes) {
+                client.close();
+                throw new IOException("Display :" + displayNumber + " of " + client.getWidth() + "x" + client.getHeight()
+                        + " needs more than " + maxBytes / (1024 * 1024) + " MB to record");
+            }
+            String id = UUID.randomUUID().toString();
+            Recording recording = new Recording(id, displayNumber, client, seconds * 1000L, maxBytes);
+            long period = 1000L / Math.max(1, frameRate);
+            synchronized (recording) {
+                // Sampler failing, or the recording stopped, waits for the future to be there to cancel
+                RECORDINGS.put(id, recording);
+                recording.future = SAMPLERS.scheduleAtFixedRate(recording, period, period, TimeUnit.MILLISECONDS);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Memory used by a recording regardless of changes: the framebuffer of the RFB client and the keyframe.
+     */
+    /*package*/ static long fixedBytes(int width, int height) {
+        return width * height * 4L * 2;
+    }
+
+    private static final class Stop implements Callable<Boolean, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+        private final OutputStream out;
+
+        private Stop(String id, OutputStream out) {
+            this.id = id;
+            this.out = out;
+        }
+
+        public Boolean call() throws IOException {
+            Recording recording = RECORDINGS.remove(id);
+            if (recording == null) return false; // Failed already
+
+            recording.stop();
+            if (out == null) return false;
+            try {
+                return recording.write(out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Region of the display that has changed.
+     */
+    private static final class Tile {
+        private final Rectangle bounds;
+        private final int[] pixels;
+
+        private Tile(Rectangle bounds, int[] framebuffer, int width) {
+            this.bounds = bounds;
+            this.pixels = new int[bounds.width * bounds.height];
+            for (int y = 0; y < bounds.height; y++) {
+                System.arraycopy(framebuffer, (bounds.y + y) * width + bounds.x, pixels, y * bounds.width, bounds.width);
+            }
+        }
+
+        private void paint(int[] framebuffer, int width) {
+            for (int y = 0; y < bounds.height; y++) {
+                System.arraycopy(pixels, y * bounds.width, framebuffer, (bounds.y + y) * width + bounds.x, bounds.width);
+            }
+        }
+    }
+
+    /**
+     * Changes of single sample.
+     */
+    private static final class Frame {
+        private final long time;
+        private final List<Tile> tiles = new ArrayList<Tile>();
+        /**
+         * Union of all tiles.
+         */
+        private Rectangle bounds;
+
+        private Frame(long time) {
+            this.time = time;
+        }
+
+        private long bytes() {
+            long bytes = 0;
+            for (Tile tile: tiles) {
+                bytes += tile.pixels.length * 4L;
+            }
+            return bytes;
+        }
+    }
+
+    private static final class Recording implements Runnable {
+        private final String id;
+        private final int displayNumber;
+        private final RfbClient client;
+        private final long window;
+        private final long maxBytes;
+        private final int width;
+        private final int height;
+
+        /**
+         * Display content at {@link #keyframeTime}.
+         */
+        private int[] keyframe;
+        private long keyframeTime;
+        private final LinkedList<Frame> frames = new LinkedList<Frame>();
+        /**
+         * Memory used, counting the framebuffer and keyframe as well as the frames.
+         */
+        private long bytes;
+
+        /**
+         * Guarded by the recording.
+         */
+        private ScheduledFuture<?> future;
+
+        private Recording(String id, int displayNumber, RfbClient client, long window, long maxBytes) throws IOException {
+            this.id = id;
+            this.displayNumber = displayNumber;
+            this.client = client;
+            this.window = window;
+            this.maxBytes = maxBytes;
+            this.width = client.getWidth();
+            this.height = client.getHeight();
+            this.bytes = fixedBytes(width, height);
+
+            client.update(false);
+            keyframe = client.pixels().clone();
+            keyframeTime = System.currentTimeMillis();
+            client.requestUpdate(true);
+        }
+
+        public synchronized void run() {
+            try {
+                List<Rectangle> updated = client.poll();
+                if (updated == null) {
+                    // No change. Closed connection is not detected by polling so watch for the server to exit.
+                    if (!DisplayScanner.lock(displayNumber).exists()) throw new IOException("Display :" + displayNumber + " is gone");
+                    return;
+                }
+                client.requestUpdate(true);
+                if (updated.isEmpty()) return;
+
+                long now = System.currentTimeMillis();
+                Frame frame = new Frame(now);
+                for (Rectangle r: updated) {
+                    frame.tiles.add(new Tile(r, client.pixels(), width));
+                    frame.bounds = frame.bounds == null ? new Rectangle(r) : frame.bounds.union(r);
+                }
+                frames.addLast(frame);
+                bytes += frame.bytes();
+
+                while (!frames.isEmpty() && (now - frames.getFirst().time > window || bytes > maxBytes)) {
+                    Frame oldest = frames.removeFirst();
+                    for (Tile tile: oldest.tiles) {
+                        tile.paint(keyframe, width);
+                    }
+                    keyframeTime = oldest.time;
+                    bytes -= oldest.bytes();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Recording " + id + " failed", e);
+                RECORDINGS.remove(id);
+                stop();
+            }
+        }
+
+        private synchronized void stop() {
+            future.cancel(false);
+            try {
+                client.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close recording " + id, e);
+            }
+        }
+
+        /**
+         * Write keyframe followed by changed regions as animated GIF.
+         */
+        private synchronized boolean write(OutputStream out) throws IOException {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+            if (!writers.hasNext()) return false;
+
+            ImageWriter writer = writers.next();
+            ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+            try {
+                writer.setOutput(ios);
+                writer.prepareWriteSequence(null);
+
+                int[] framebuffer = keyframe.clone();
+                long time = keyframeTime;
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                image.setRGB(0, 0, width, height, framebuffer, 0, width);
+                Rectangle bounds = new Rectangle(0, 0, width, height);
+                for (Frame frame: frames) {
+                    writeFrame(writer, image, bounds, frame.time - time);
+
+                    for (Tile tile: frame.tiles) {
+                        tile.paint(framebuffer, width);
+                    }
+                    bounds = frame.bounds;
+                    image = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_RGB);
+                    image.setRGB(0, 0, bounds.width, bounds.height, framebuffer, bounds.y * width + bounds.x, width);
+                    time = frame.time;
+                }
+                writeFrame(writer, image, bounds, 1000);
+
+                writer.endWriteSequence();
+            } finally {
+                ios.close();
+                writer.dispose();
+            }
+            return true;
+        }
+
+        private void writeFrame(ImageWriter writer, BufferedImage image, Rectangle bounds, long delay) throws IOException {
+            IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+            String format = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+
+            IIOMetadataNode control = child(root, "GraphicControlExtension");
+            control.setAttribute("disposalMethod", "doNotDispose");
+            control.setAttribute("userInputFlag", "FALSE");
+            control.setAttribute("transparentColorFlag", "FALSE");
+            control.setAttribute("delayTime", String.valueOf(Math.max(1, delay / 10)));
+            control.setAttribute("transparentColorIndex", "0");
+
+            IIOMetadataNode descriptor = child(root, "ImageDescriptor");
+            descriptor.setAttribute("imageLeftPosition", String.valueOf(bounds.x));
+            descriptor.setAttribute("imageTopPosition", String.valueOf(bounds.y));
+            descriptor.setAttribute("imageWidth", String.valueOf(bounds.width));
+            descriptor.setAttribute("imageHeight", String.valueOf(bounds.height));
+            descriptor.setAttribute("interlaceFlag", "FALSE");
+
+            metadata.setFromTree(format, root);
+            writer.writeToSequence(new IIOImage(image, null, metadata), null);
+        }
+
+        private static IIOMetadataNode child(IIOMetadataNode root, String name) {
+            for (int i = 0; i < root.getLength(); i++) {
+                if (root.item(i).getNodeName().equals(name)) return (IIOMetadataNode) root.item(i);
+            }
+            IIOMetadataNode node = new IIOMetadataNode(name);
+            root.appendChild(node);
+            return node;
+        }
+    }
+}
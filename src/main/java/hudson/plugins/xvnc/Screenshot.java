@@ -0,0 +1,57 @@
+package hudson.plugins.xvnc;
+
+import hudson.remoting.Callable;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Captures the display in the node JVM over RFB and streams the image to the controller.
+ */
+final class Screenshot {
+
+    private static final int TIMEOUT = 10000;
+
+    private Screenshot() {}
+
+    /**
+     * Callable writing JPEG screenshot of the display to out. It throws IOException when the server does not
+     * speak RFB or can not be read.
+     */
+    public static Callable<Void, IOException> capture(int displayNumber, OutputStream out) {
+        return new Capture(displayNumber, out);
+    }
+
+    private static final class Capture implements Callable<Void, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int displayNumber;
+        private final OutputStream out;
+
+        private Capture(int displayNumber, OutputStream out) {
+            this.displayNumber = displayNumber;
+            this.out = out;
+        }
+
+        public Void call() throws IOException {
+            RfbClient client = RfbClient.connect(displayNumber, TIMEOUT);
+            try {
+                client.update(false);
+                OutputStream os = new BufferedOutputStream(out);
+                try {
+                    if (!ImageIO.write(client.toImage(), "jpg", os)) {
+                        throw new IOException("No JPEG encoder available");
+                    }
+                } finally {
+                    os.close();
+                }
+            } finally {
+                client.close();
+            }
+            return null;
+        }
+    }
+}
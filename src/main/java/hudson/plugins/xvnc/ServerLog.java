@@ -0,0 +1,361 @@
+package hudson.plugins.xvnc;
+
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Output of X servers and their helper commands, kept on the node in a size capped file per display.
+ *
+ * Servers are launched from the node JVM writing straight to the log, so their output does not go through
+ * the channel. Once the file reaches {@link #SIZE} kilobytes it is rotated, keeping the previous one, so a
+ * chatty server never takes more than twice that. Only the last {@link #TAIL} lines go to the build log, the full output is saved
+ * with failed builds.
+ */
+final class ServerLog {
+
+    /**
+     * Kilobytes of output per file.
+     */
+    /*package*/ static int SIZE = Integer.getInteger(ServerLog.class.getName() + ".size", 256);
+
+    /**
+     * Lines of output printed to the build log.
+     */
+    /*package*/ static int TAIL = Integer.getInteger(ServerLog.class.getName() + ".tail", 20);
+
+    private static final int TAIL_BYTES = 8192;
+
+    /**
+     * Logs open in this JVM by id.
+     */
+    private static final Map<String, Rotating> LOGS = new ConcurrentHashMap<String, Rotating>();
+
+    /**
+     * Processes launched in this JVM by the log id, until their log is closed.
+     */
+    private static final Map<String, Proc> PROCS = new ConcurrentHashMap<String, Proc>();
+
+    private ServerLog() {}
+
+    /**
+     * Launch process on the node, writing its output to a new log of the display.
+     *
+     * @return Handle of the process. Its log is identified by {@link Launched#getLog()}.
+     */
+    public static Launched launch(Launcher launcher, int displayNumber, String[] cmds, Map<String, String> envs,
+            String pwd) throws IOException, InterruptedException {
+        VirtualChannel channel = launcher.getChannel();
+        String id = channel.call(new Launch(displayNumber, cmds, envs, pwd));
+        return new Launched(channel, id);
+    }
+
+    /**
+     * Output stream of the log in this JVM, or null when it is closed.
+     */
+    /*package*/ static OutputStream output(String id) {
+        return LOGS.get(id);
+    }
+
+    /**
+     * Process writing to the log in this JVM, or null when its log is closed.
+     */
+    /*package*/ static Proc process(String id) {
+        return PROCS.get(id);
+    }
+
+    /**
+     * Callable closing the log in the node JVM and deleting its files. Full output is written to out unless
+     * it is null. Process still writing to it is killed.
+     *
+     * @return Last lines of the output.
+     */
+    /*package*/ static Callable<String, IOException> close(String id, OutputStream out) {
+        return new Close(id, out);
+    }
+
+    /**
+     * Process launched on the node, controlled through the channel.
+     */
+    public static final class Launched extends Proc {
+        private final VirtualChannel channel;
+        private final String id;
+
+        private Launched(VirtualChannel channel, String id) {
+            this.channel = channel;
+            this.id = id;
+        }
+
+        /**
+         * Id of the log the process writes to.
+         */
+        public String getLog() {
+            return id;
+        }
+
+        @Override
+        public boolean isAlive() throws IOException, InterruptedException {
+            return channel.call(new Control(id, Control.ALIVE)) != 0;
+        }
+
+        @Override
+        public void kill() throws IOException, InterruptedException {
+            channel.call(new Control(id, Control.KILL));
+        }
+
+        @Override
+        public int join() throws IOException, InterruptedException {
+            return channel.call(new Control(id, Control.JOIN));
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+
+    private static final class Launch implements Callable<String, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int displayNumber;
+        private final String[] cmds;
+        private final HashMap<String, String> envs;
+        private final String pwd;
+
+        private Launch(int displayNumber, String[] cmds, Map<String, String> envs, String pwd) {
+            this.displayNumber = displayNumber;
+            this.cmds = cmds;
+            this.envs = new HashMap<String, String>(envs);
+            this.pwd = pwd;
+        }
+
+        public String call() throws IOException {
+            String id = UUID.randomUUID().toString();
+            Rotating log = new Rotating(new File(System.getProperty("java.io.tmpdir"), "xvnc-" + displayNumber + "-" + id + ".log"));
+            LOGS.put(id, log);
+            try {
+                PROCS.put(id, new Launcher.LocalLauncher(TaskListener.NULL).launch().cmds(cmds).envs(envs).stdout(log).pwd(pwd).start());
+            } catch (IOException e) {
+                LOGS.remove(id);
+                log.finish();
+                for (File file: log.files()) {
+                    file.delete();
+                }
+                throw e;
+            }
+            return id;
+        }
+    }
+
+    private static final class Control implements Callable<Integer, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private static final int ALIVE = 0;
+        private static final int KILL = 1;
+        private static final int JOIN = 2;
+
+        private final String id;
+        private final int action;
+
+        private Control(String id, int action) {
+            this.id = id;
+            this.action = action;
+        }
+
+        public Integer call() throws IOException {
+            Proc proc = PROCS.get(id);
+            if (proc == null) return action == JOIN ? -1 : 0; // Log closed already
+
+            try {
+                switch (action) {
+                case ALIVE:
+                    return proc.isAlive() ? 1 : 0;
+                case KILL:
+                    proc.kill();
+                    return 0;
+                default:
+                    return proc.join();
+                }
+            } catch (InterruptedException e) {
+                throw (IOException) new IOException("Interrupted controlling " + id).initCause(e);
+            }
+        }
+    }
+
+    private static final class Close implements Callable<String, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+        private final OutputStream out;
+
+        private Close(String id, OutputStream out) {
+            this.id = id;
+            this.out = out;
+        }
+
+        public String call() throws IOException {
+            Rotating log = LOGS.remove(id);
+            Proc proc = PROCS.remove(id);
+            try {
+                if (proc != null && proc.isAlive()) {
+                    proc.kill(); // Must not outlive the registry, nothing could stop it then
+                }
+
+                if (log == null) return "";
+
+                log.finish();
+                if (out != null) {
+                    byte[] buf = new byte[8192];
+                    for (File file: log.files()) {
+                        if (!file.exists()) continue;
+                        InputStream in = new FileInputStream(file);
+                        try {
+                            for (int read; (read = in.read(buf)) >= 0;) {
+                                out.write(buf, 0, read);
+                            }
+                        } finally {
+                            in.close();
+                        }
+                    }
+                }
+                return log.tail();
+            } catch (InterruptedException e) {
+                throw (IOException) new IOException("Interrupted closing " + id).initCause(e);
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+                if (log != null) {
+                    for (File file: log.files()) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Log file rotated once it reaches {@link #SIZE} kilobytes. Writes after it is finished are dropped, the
+     * process may outlive its display.
+     */
+    private static final class Rotating extends OutputStream {
+        private final File file;
+        private final File previous;
+        private final long limit = SIZE * 1024L;
+        private OutputStream out;
+        private long size;
+        private boolean finished;
+
+        private Rotating(File file) throws IOException {
+            this.file = file;
+            this.previous = new File(file.getPath() + ".1");
+            this.out = new FileOutputStream(file);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (finished) return;
+
+            while (len > 0) {
+                if (size >= limit) {
+                    out.close();
+                    previous.delete();
+                    if (!file.renameTo(previous)) throw new IOException("Unable to rotate " + file);
+                    out = new FileOutputStream(file);
+                    size = 0;
+                }
+                int chunk = (int) Math.min(len, limit - size);
+                out.write(b, off, chunk);
+                size += chunk;
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        @Override
+        public void close() {
+            // Launched process closes its output when it exits; the log stays open for helper commands
+        }
+
+        private synchronized void finish() throws IOException {
+            if (finished) return;
+
+            finished = true;
+            out.close();
+        }
+
+        private File[] files() {
+            return new File[] {previous, file};
+        }
+
+        /**
+         * @return Last {@link #TAIL} lines.
+         */
+        private String tail() throws IOException {
+            byte[] last = last(file, TAIL_BYTES);
+            if (last.length < TAIL_BYTES) {
+                byte[] before = last(previous, TAIL_BYTES - last.length);
+                byte[] both = new byte[before.length + last.length];
+                System.arraycopy(before, 0, both, 0, before.length);
+                System.arraycopy(last, 0, both, before.length, last.length);
+                last = both;
+            }
+
+            List<String> lines = new ArrayList<String>(Arrays.asList(new String(last).split("\r?\n")));
+            if (lines.size() == 1 && lines.get(0).length() == 0) return "";
+
+            StringBuilder tail = new StringBuilder();
+            for (String line: lines.subList(Math.max(0, lines.size() - TAIL), lines.size())) {
+                tail.append(line).append('\n');
+            }
+            return tail.toString();
+        }
+
+        private static byte[] last(File file, int max) throws IOException {
+            if (!file.exists() || max <= 0) return new byte[0];
+
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                int length = (int) Math.min(max, in.length());
+                byte[] buf = new byte[length];
+                in.seek(in.length() - length);
+                in.readFully(buf);
+                return buf;
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
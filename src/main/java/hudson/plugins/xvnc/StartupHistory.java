@@ -0,0 +1,35 @@
+package hudson.plugins.xvnc;
+
+/**
+ * Outcomes of the last server starts on a node.
+ */
+final class StartupHistory {
+
+    /**
+     * Starts remembered.
+     */
+    /*package*/ static final int WINDOW = 20;
+
+    private final boolean[] failures = new boolean[WINDOW];
+    private int next;
+    private int recorded;
+
+    /*package*/ synchronized void record(boolean failed) {
+        failures[next] = failed;
+        next = (next + 1) % WINDOW;
+        recorded = Math.min(recorded + 1, WINDOW);
+    }
+
+    /**
+     * @return Percentage of the remembered starts that have failed, 0 when there are none.
+     */
+    /*package*/ synchronized int failureRate() {
+        if (recorded == 0) return 0;
+
+        int failed = 0;
+        for (int i = 0; i < recorded; i++) {
+            if (failures[i]) failed++;
+        }
+        return failed * 100 / recorded;
+    }
+}
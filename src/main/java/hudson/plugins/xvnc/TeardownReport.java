@@ -0,0 +1,113 @@
+package hudson.plugins.xvnc;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Output of the background teardown of displays of a build, for the build log.
+ *
+ * Teardown may outlive the log of the build. Its output is buffered and printed once the build completes,
+ * what is written after that is appended to the log file once the build has closed it.
+ */
+final class TeardownReport {
+
+    private static final Logger LOGGER = Logger.getLogger(TeardownReport.class.getName());
+
+    /**
+     * Milliseconds to wait for the build to close its log.
+     */
+    private static final long CLOSE_WAIT = 10000;
+
+    private final Run<?, ?> run;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final TaskListener listener = new StreamTaskListener(new PrintStream(buffer, true));
+    private int pending;
+    private boolean closed;
+
+    /*package*/ TeardownReport(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    /**
+     * Listener for the teardown to write to.
+     */
+    /*package*/ TaskListener listener() {
+        return listener;
+    }
+
+    /**
+     * Teardown writing to the listener was queued.
+     */
+    /*package*/ synchronized void submitted() {
+        pending++;
+    }
+
+    /**
+     * Teardown is done writing to the listener.
+     */
+    /*package*/ void done() {
+        byte[] output;
+        synchronized (this) {
+            if (--pending > 0 || !closed) return;
+            output = drain();
+        }
+        append(output);
+    }
+
+    /**
+     * Build completes; print what the teardown has written so far to its log.
+     */
+    /*package*/ void print(TaskListener buildListener) {
+        byte[] output;
+        synchronized (this) {
+            closed = true;
+            output = drain();
+        }
+        buildListener.getLogger().write(output, 0, output.length);
+    }
+
+    private byte[] drain() {
+        listener.getLogger().flush();
+        synchronized (buffer) {
+            byte[] output = buffer.toByteArray();
+            buffer.reset();
+            return output;
+        }
+    }
+
+    private void append(byte[] output) {
+        if (output.length == 0) return;
+
+        try {
+            // Build writes its last lines after completion listeners
+            long deadline = System.currentTimeMillis() + CLOSE_WAIT;
+            while (run.isLogUpdated()) {
+                if (System.currentTimeMillis() > deadline) throw new IOException("Log of " + run + " is still open");
+                Thread.sleep(100);
+            }
+            File log = run.getLogFile();
+            if (!log.getName().equals("log")) throw new IOException("Unable to append to " + log); // Compressed
+
+            OutputStream out = new FileOutputStream(log, true);
+            try {
+                out.write(output);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to append teardown output to the log of " + run + ":\n" + new String(output), e);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.FINE, "Interrupted appending teardown output to the log of " + run + ":\n" + new String(output), e);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.FormValidation;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Bare Xvfb. It starts faster and takes less memory than a VNC session but can not be viewed remotely.
+ *
+ * With {@link Framebuffer#FILE} the screen is memory mapped to <tt>/tmp/.Xvfb-fb&lt;n&gt;/Xvfb_screen0</tt>
+ * in XWD format, and screenshots are read from there without connecting to the server.
+ */
+public class XvfbBackend extends DisplayBackend {
+
+    public enum Framebuffer {
+        /**
+         * Private memory of the server.
+         */
+        MEMORY(""),
+        /**
+         * System V shared memory segment.
+         */
+        SHARED_MEMORY(" -shmem"),
+        /**
+         * Memory mapped file.
+         */
+        FILE(" -fbdir " + FBDIR + "$DISPLAY_NUMBER");
+
+        private final String option;
+
+        private Framebuffer(String option) {
+            this.option = option;
+        }
+    }
+
+    private static final String FBDIR = "/tmp/.Xvfb-fb";
+    private static final String DEFAULT_SCREEN = "1024x768x24";
+
+    private final String screen;
+    private final Framebuffer framebuffer;
+
+    @DataBoundConstructor
+    public XvfbBackend(String screen, Framebuffer framebuffer) {
+        this.screen = Util.fixEmptyAndTrim(screen);
+        this.framebuffer = framebuffer == null ? Framebuffer.MEMORY : framebuffer;
+    }
+
+    /**
+     * Screen geometry and depth as <tt>WxHxD</tt>.
+     */
+    public String getScreen() {
+        return screen == null ? DEFAULT_SCREEN : screen;
+    }
+
+    public Framebuffer getFramebuffer() {
+        return framebuffer;
+    }
+
+    @Override
+    public String getCommandline() {
+        return command(getScreen());
+    }
+
+    @Override
+    public String getCommandline(Screen screen) {
+        return command(screen.toString());
+    }
+
+    private String command(String screen) {
+        return "Xvfb :$DISPLAY_NUMBER -screen 0 " + screen + " -nolisten tcp" + framebuffer.option;
+    }
+
+    @Override
+    public Screen getDefaultScreen() {
+        Screen screen = Screen.parse(getScreen(), Screen.DEFAULT.depth);
+        return screen == null ? Screen.DEFAULT : screen;
+    }
+
+    @Override
+    public void prepare(VirtualChannel channel, int displayNumber) throws IOException, InterruptedException {
+        if (framebuffer == Framebuffer.FILE) {
+            channel.call(new Fbdir(displayNumber, true));
+        }
+    }
+
+    @Override
+    public void cleanUp(VirtualChannel channel, int displayNumber) throws IOException, InterruptedException {
+        if (framebuffer == Framebuffer.FILE) {
+            channel.call(new Fbdir(displayNumber, false));
+        }
+    }
+
+    @Override
+    public Callable<Void, IOException> capture(int displayNumber, OutputStream out) {
+        return framebuffer == Framebuffer.FILE ? new Capture(displayNumber, out) : null;
+    }
+
+    private static File fbdir(int displayNumber) {
+        return new File(FBDIR + displayNumber);
+    }
+
+    /**
+     * Create or delete framebuffer directory.
+     */
+    private static final class Fbdir implements Callable<Void, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int displayNumber;
+        private final boolean create;
+
+        private Fbdir(int displayNumber, boolean create) {
+            this.displayNumber = displayNumber;
+            this.create = create;
+        }
+
+        public Void call() throws IOException {
+            File dir = fbdir(displayNumber);
+            if (create) {
+                if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+            } else {
+                Util.deleteRecursive(dir);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Convert XWD image of the screen to JPEG.
+     */
+    private static final class Capture implements Callable<Void, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private static final int Z_PIXMAP = 2;
+        private static final int TRUE_COLOR = 4;
+        private static final int DIRECT_COLOR = 5;
+
+        private final int displayNumber;
+        private final OutputStream out;
+
+        private Capture(int displayNumber, OutputStream out) {
+            this.displayNumber = displayNumber;
+            this.out = out;
+        }
+
+        public Void call() throws IOException {
+            File xwd = new File(fbdir(displayNumber), "Xvfb_screen0");
+            BufferedImage image;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(xwd)));
+            try {
+                image = read(in);
+            } finally {
+                in.close();
+            }
+
+            OutputStream os = new BufferedOutputStream(out);
+            try {
+                if (!ImageIO.write(image, "jpg", os)) {
+                    throw new IOException("No JPEG encoder available");
+                }
+            } finally {
+                os.close();
+            }
+            return null;
+        }
+
+        /**
+         * Read XWD image. Xvfb writes the header most significant byte first, pixels in its own byte order.
+         */
+        private static BufferedImage read(DataInputStream in) throws IOException {
+            int[] header = new int[25];
+            for (int i = 0; i < header.length; i++) {
+                header[i] = in.readInt();
+            }
+            int headerSize = header[0];
+            int format = header[2];
+            int width = header[4];
+            int height = header[5];
+            boolean lsbFirst = header[7] == 0;
+            int bitsPerPixel = header[11];
+            int bytesPerLine = header[12];
+            int visualClass = header[13];
+            int[] masks = {header[14], header[15], header[16]};
+            int colors = header[19];
+
+            if (format != Z_PIXMAP || (visualClass != TRUE_COLOR && visualClass != DIRECT_COLOR) || bitsPerPixel % 8 != 0) {
+                throw new IOException("Unsupported XWD image: format " + format + ", visual class " + visualClass + ", " + bitsPerPixel + " bits per pixel");
+            }
+            in.readFully(new byte[headerSize - header.length * 4 + colors * 12]); // Window name and colormap
+
+            int bytesPerPixel = bitsPerPixel / 8;
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            byte[] line = new byte[bytesPerLine];
+            int[] rgb = new int[width];
+            for (int y = 0; y < height; y++) {
+                in.readFully(line);
+                for (int x = 0; x < width; x++) {
+                    int pixel = 0;
+                    for (int b = 0; b < bytesPerPixel; b++) {
+                        int value = line[x * bytesPerPixel + b] & 0xff;
+                        pixel |= lsbFirst ? value << (8 * b) : value << (8 * (bytesPerPixel - 1 - b));
+                    }
+                    rgb[x] = component(pixel, masks[0]) << 16 | component(pixel, masks[1]) << 8 | component(pixel, masks[2]);
+                }
+                image.setRGB(0, y, width, 1, rgb, 0, width);
+            }
+            return image;
+        }
+
+        /**
+         * Scale masked color component to 8 bits.
+         */
+        private static int component(int pixel, int mask) {
+            if (mask == 0) return 0;
+
+            int bits = Integer.bitCount(mask);
+            int value = (pixel & mask) >>> Integer.numberOfTrailingZeros(mask);
+            return bits >= 8 ? value >>> (bits - 8) : value * 255 / ((1 << bits) - 1);
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends BackendDescriptor {
+        @Override
+        public String getDisplayName() {
+            return "Xvfb";
+        }
+
+        public FormValidation doCheckScreen(@QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            if (value == null || value.matches("\\d+x\\d+(x\\d+)?")) {
+                return FormValidation.ok();
+            }
+            return FormValidation.error("Expected WIDTHxHEIGHTxDEPTH, for example " + DEFAULT_SCREEN);
+        }
+    }
+}
@@ -3,7 +3,6 @@ package hudson.plugins.xvnc;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
-import hudson.Proc;
 import hudson.Util;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
@@ -11,25 +10,33 @@ import hudson.model.AbstractProject;
 import hudson.model.Computer;
 import hudson.model.Hudson;
 import hudson.model.Node;
+import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.listeners.RunListener;
+import hudson.remoting.RemoteOutputStream;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import hudson.util.FormValidation;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.UUID;
 
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
@@ -46,52 +53,441 @@ public class Xvnc extends BuildWrapper {
 
     public Boolean useXauthority;
 
+    /**
+     * Whether or not to keep recording of the last seconds of the display when the build fails.
+     */
+    public boolean recordOnFailure;
+
+    /**
+     * Display server selected for the job, or null to choose by node label.
+     */
+    public DisplayBackend backend;
+
+    /**
+     * Number of displays started for every build.
+     */
+    public int displays = 1;
+
+    /**
+     * Screen size as <tt>WxH</tt>, or null for the size the backend starts with.
+     */
+    public String geometry;
+
+    /**
+     * Color depth in bits, or 0 for the depth the backend starts with.
+     */
+    public int depth;
+
+    /**
+     * Whether or not to take screenshots at checkpoints the build asks for through <tt>XVNC_CHECKPOINTS</tt>.
+     */
+    public boolean checkpoints;
+
+    /**
+     * Whether or not to keep the screenshot and checkpoints only when the build fails.
+     */
+    public boolean screenshotsOnFailure;
+
     private static final String FILENAME_SCREENSHOT = "screenshot.jpg";
+    private static final String FILENAME_RECORDING = "recording.gif";
+    private static final String FILENAME_CHECKPOINTS = "checkpoints";
+    private static final String FILENAME_LOG = "xvnc.log";
 
     @DataBoundConstructor
     public Xvnc(boolean takeScreenshot, boolean useXauthority) {
         this.takeScreenshot = takeScreenshot;
         this.useXauthority = useXauthority;
     }
+
+    @DataBoundSetter
+    public void setRecordOnFailure(boolean recordOnFailure) {
+        this.recordOnFailure = recordOnFailure;
+    }
+
+    @DataBoundSetter
+    public void setCheckpoints(boolean checkpoints) {
+        this.checkpoints = checkpoints;
+    }
+
+    @DataBoundSetter
+    public void setScreenshotsOnFailure(boolean screenshotsOnFailure) {
+        this.screenshotsOnFailure = screenshotsOnFailure;
+    }
+
+    @DataBoundSetter
+    public void setDisplays(int displays) {
+        this.displays = displays;
+    }
+
+    public int getDisplays() {
+        return Math.max(1, displays);
+    }
+
+    @DataBoundSetter
+    public void setGeometry(String geometry) {
+        this.geometry = Util.fixEmptyAndTrim(geometry);
+    }
+
+    @DataBoundSetter
+    public void setDepth(int depth) {
+        this.depth = Math.max(0, depth);
+    }
+
+    /**
+     * Screen requested by the job, completed by the default one of the backend.
+     *
+     * @return The screen, or null when the job requests none.
+     */
+    /*package*/ Screen getScreen(DisplayBackend backend) {
+        if (geometry == null && depth <= 0) return null;
+
+        Screen defaults = backend.getDefaultScreen();
+        Screen size = Screen.parse(geometry, defaults.depth);
+        if (size == null) size = defaults;
+        return new Screen(size.width, size.height, depth > 0 ? depth : defaults.depth);
+    }
+
+    /**
+     * Framebuffer bytes of every display the build starts on the node.
+     */
+    /*package*/ long getFramebufferSize(Node node) {
+        DisplayBackend backend = getBackend(node);
+        Screen screen = getScreen(backend);
+        return (screen == null ? backend.getDefaultScreen() : screen).getFramebufferSize();
+    }
+
+    /**
+     * Whether the build can lease a pooled display. Pool runs the globally configured Xvnc with the default screen.
+     */
+    /*package*/ boolean usesPool(DescriptorImpl config, DisplayBackend backend) {
+        return config.poolSize > 0 && useXauthority && backend instanceof XvncBackend && getDisplays() == 1
+                && getScreen(backend) == null;
+    }
+
+    @DataBoundSetter
+    public void setBackend(DisplayBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Backend selected by the job, by the first rule matching the node, or {@link XvncBackend}.
+     */
+    /*package*/ DisplayBackend getBackend(Node node) {
+        if (backend != null) return backend;
+
+        DescriptorImpl config = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+        for (BackendRule rule: config.getBackendRules()) {
+            if (rule.matches(node)) return rule.getBackend();
+        }
+        return new XvncBackend();
+    }
+
     @SuppressWarnings("rawtypes")
     @Extension
     public final static RunListener<Run> xvncShutdownListener = new RunListener<Run>() {
         @Override
         public void onCompleted(final Run r, final TaskListener listener) {
+            // Displays are normally released once the wrapper is torn down, not if the build was interrupted before
+            List<XvncEnvironment> envs = new ArrayList<XvncEnvironment>();
             try {
-                kill(r.getAction(XvncEnvironment.class),listener);
+                for (XvncEnvironment env: r.getActions(XvncEnvironment.class)) {
+                    if (env.release()) {
+                        envs.add(env);
+                    } else if (env.held() != null && env.held().completed(r.getResult())) {
+                        collect(r, env, r.getResult());
+                    }
+                }
+                if (!envs.isEmpty()) {
+                    release(r, envs, r.getResult(), true);
+                }
             } catch (IOException e) {
                 e.printStackTrace(listener.getLogger());
-            } catch (InterruptedException e) {
-                e.printStackTrace(listener.getLogger());
+            }
+
+            // Last chance to write to the log; teardown still running appends to it once closed
+            List<TeardownReport> reports = new ArrayList<TeardownReport>();
+            for (XvncEnvironment env: r.getActions(XvncEnvironment.class)) {
+                if (env.report() != null && !reports.contains(env.report())) {
+                    reports.add(env.report());
+                    env.report().print(listener);
+                }
             }
         }
-        
-        private void kill(XvncEnvironment env, TaskListener listener) throws IOException, InterruptedException {
-            FilePath ws = env.build().getWorkspace();
-            Launcher launcher=ws.createLauncher(listener);
-            if (env.takeScreenshot()) {
-                File artifactsDir = env.build().getArtifactsDir();
-                artifactsDir.mkdirs();
-                env.logger().println(Messages.Xvnc_TAKING_SCREENSHOT());
-                launcher.launch().cmds("echo", "$XAUTHORITY").envs(env.xauthorityEnv()).stdout(env.logger()).pwd(ws).join();
-                launcher.launch().cmds("ls", "-l", "$XAUTHORITY").envs(env.xauthorityEnv()).stdout(env.logger()).pwd(ws).join();
-                launcher.launch().cmds("import", "-window", "root", "-display", ":" + env.displayNumber(), FILENAME_SCREENSHOT).
-                        envs(env.xauthorityEnv()).stdout(env.logger()).pwd(ws).join();
-                ws.child(FILENAME_SCREENSHOT).copyTo(new FilePath(artifactsDir).child(FILENAME_SCREENSHOT));
+    };
+
+    /**
+     * Queue displays of the build for teardown on their node.
+     *
+     * Displays are captured and terminated in background, with output reported to the build log by
+     * {@link TeardownReport}. Until the build has completed, captures saved only for failed builds are held on the node.
+     *
+     * @param completed The result is final.
+     */
+    private static void release(final Run<?, ?> r, final List<XvncEnvironment> envs, final Result result, boolean completed) throws IOException {
+        Node node = envs.get(0).build().getBuiltOn();
+        if (node == null) return; // Node removed; its displays are gone with it
+
+        FilePath root = node.getRootPath();
+        final HeldCaptures held = completed || failed(result) || root == null
+                ? null : new HeldCaptures(root.child("xvnc").child("held-" + UUID.randomUUID()));
+        if (held != null) {
+            for (XvncEnvironment env: envs) {
+                env.hold(held);
             }
-            env.logger().println(Messages.Xvnc_TERMINATING());
-            if (env.vncServerCommand() != null) {
-                // #173: stopping the wrapper script will accomplish nothing. It has already exited, in fact.
-                launcher.launch().cmds(env.vncServerCommand(), "-kill", ":" + env.displayNumber()).envs(env.xauthorityEnv()).stdout(env.logger()).join();
+        }
+
+        final TeardownReport report = new TeardownReport(r);
+        for (XvncEnvironment env: envs) {
+            env.report(report);
+        }
+
+        envs.get(0).logger().println(Messages.Xvnc_TERMINATING());
+        report.submitted();
+        // Build log may be closed by the time this runs
+        DisplayAllocator.Property.of(node).getTeardown().submit(new Runnable() {
+            public void run() {
+                TaskListener log = report.listener();
+                try {
+                    try {
+                        stop(envs, result, held, log);
+                    } finally {
+                        if (held != null) {
+                            held.captured(log);
+                        }
+                    }
+                } catch (IOException e) {
+                    for (XvncEnvironment env: envs) {
+                        if (env.pooledDisplay() == null) {
+                            // Let DisplayReaper find out whether the server is gone
+                            LeaseJournal.get().disowned(env.build().getBuiltOn(), env.displayNumber());
+                        }
+                    }
+                    e.printStackTrace(log.error("Failed to tear down displays of " + r));
+                } catch (InterruptedException e) {
+                    e.printStackTrace(log.error("Interrupted tearing down displays of " + r));
+                } finally {
+                    report.done();
+                }
+            }
+        });
+    }
+
+    /**
+     * Copy captures held on the node to the completed build, in background.
+     */
+    private static void collect(final Run<?, ?> r, XvncEnvironment env, final Result result) throws IOException {
+        Node node = env.build().getBuiltOn();
+        if (node == null) return; // Gone with the node
+
+        final HeldCaptures held = env.held();
+        final TeardownReport report = env.report();
+        report.submitted();
+        DisplayAllocator.Property.of(node).getTeardown().submit(new Runnable() {
+            public void run() {
+                try {
+                    held.collect(result, report.listener());
+                } catch (InterruptedException e) {
+                    e.printStackTrace(report.listener().error("Interrupted saving captures of displays of " + r));
+                } finally {
+                    report.done();
+                }
+            }
+        });
+    }
+
+    private static boolean failed(Result result) {
+        return result != null && result.isWorseThan(Result.SUCCESS);
+    }
+
+    /**
+     * Capture and stop displays of the build in a single call to its node, then release their numbers.
+     *
+     * @param held Where captures saved only for failed builds go when the build is not failed yet but may
+     *     still be, or null when the result is final.
+     */
+    private static void stop(List<XvncEnvironment> envs, Result result, HeldCaptures held, TaskListener listener) throws IOException, InterruptedException {
+        AbstractBuild<?, ?> build = envs.get(0).build();
+        FilePath ws = build.getWorkspace();
+        if (ws == null || ws.getChannel() == null) {
+            // Offline; journal is reconciled once the node is back
+            for (XvncEnvironment env: envs) {
+                if (env.pooledDisplay() == null) {
+                    LeaseJournal.get().disowned(build.getBuiltOn(), env.displayNumber());
+                }
+                DisplayAllocator.Property.of(build.getBuiltOn()).leftBehind(env.xauthority().getRemote());
+            }
+            return;
+        }
+
+        boolean failed = failed(result);
+        File artifactsDir = build.getArtifactsDir();
+        List<DisplayTeardown.Display> displays = new ArrayList<DisplayTeardown.Display>();
+        File[] recordings = new File[envs.size()];
+        File[] screenshots = new File[envs.size()];
+        File[] checkpoints = new File[envs.size()];
+        File[] serverLogs = new File[envs.size()];
+        boolean[] screenshotTaken = new boolean[envs.size()];
+        List<OutputStream> streams = new ArrayList<OutputStream>();
+        List<DisplayTeardown.Outcome> outcomes;
+        try {
+            for (int i = 0; i < envs.size(); i++) {
+                XvncEnvironment env = envs.get(i);
+                boolean pooled = env.pooledDisplay() != null;
+                DisplayTeardown.Display display = new DisplayTeardown.Display(env.displayNumber(), !pooled, env.vncServerCommand(),
+                        env.xauthorityEnv(), pooled ? null : env.xauthority().getRemote(), ws.getRemote());
+                if (env.recording() != null) {
+                    OutputStream out = null;
+                    if (failed) {
+                        artifactsDir.mkdirs();
+                        recordings[i] = new File(artifactsDir, FILENAME_RECORDING);
+                        out = open(recordings[i], streams);
+                    } else if (held != null) {
+                        out = held.stream(i + "-" + FILENAME_RECORDING);
+                    }
+                    display.recording(env.recording(), out);
+                }
+                if (env.serverLog() != null) {
+                    OutputStream out = null;
+                    if (failed) {
+                        artifactsDir.mkdirs();
+                        serverLogs[i] = new File(artifactsDir, logName(env));
+                        out = open(serverLogs[i], streams);
+                    } else if (held != null) {
+                        out = held.stream(i + "-" + logName(env));
+                    }
+                    display.log(env.serverLog(), out);
+                }
+                boolean keep = failed || !env.onlyOnFailure();
+                if (env.checkpoints() != null) {
+                    OutputStream out = null;
+                    if (keep) {
+                        artifactsDir.mkdirs();
+                        checkpoints[i] = new File(artifactsDir, FILENAME_CHECKPOINTS + ".zip");
+                        out = open(checkpoints[i], streams);
+                    } else if (held != null) {
+                        out = held.stream(i + "-" + FILENAME_CHECKPOINTS + ".zip");
+                    }
+                    display.checkpoints(env.checkpoints(), env.checkpointDir().getRemote(), out);
+                }
+                if (env.takeScreenshot() && (keep || held != null)) {
+                    OutputStream out;
+                    if (keep) {
+                        artifactsDir.mkdirs();
+                        screenshots[i] = new File(artifactsDir, screenshotName(env));
+                        out = open(screenshots[i], streams);
+                    } else {
+                        out = held.stream(i + "-" + screenshotName(env));
+                    }
+                    display.screenshot(env.backend().capture(env.displayNumber(), out), out);
+                    screenshotTaken[i] = true;
+                    listener.getLogger().println(Messages.Xvnc_TAKING_SCREENSHOT());
+                }
+                displays.add(display);
+            }
+            outcomes = DisplayTeardown.tearDown(ws.getChannel(), displays);
+        } finally {
+            for (OutputStream out: streams) {
+                out.close();
+            }
+        }
+
+        for (int i = 0; i < envs.size(); i++) {
+            XvncEnvironment env = envs.get(i);
+            DisplayTeardown.Outcome outcome = outcomes.get(i);
+            for (String line: outcome.log) {
+                listener.getLogger().println(line);
+            }
+            if (outcome.serverOutput != null && outcome.serverOutput.length() > 0) {
+                listener.getLogger().println(Messages.Xvnc_SERVER_OUTPUT(env.displayNumber()));
+                listener.getLogger().print(outcome.serverOutput);
+            }
+            if (serverLogs[i] != null) {
+                if (serverLogs[i].length() > 0) {
+                    listener.getLogger().println(Messages.Xvnc_SERVER_OUTPUT_SAVED(env.displayNumber(), serverLogs[i].getName()));
+                } else {
+                    serverLogs[i].delete();
+                }
+            } else if (held != null && env.serverLog() != null) {
+                held.keep(i + "-" + logName(env), new File(artifactsDir, logName(env)), false,
+                        Messages.Xvnc_SERVER_OUTPUT_SAVED(env.displayNumber(), logName(env)));
+            }
+            if (recordings[i] != null) {
+                if (outcome.recordingSaved) {
+                    listener.getLogger().println(Messages.Xvnc_RECORDING_SAVED(FILENAME_RECORDING));
+                } else {
+                    recordings[i].delete();
+                }
+            } else if (held != null && outcome.recordingSaved) {
+                held.keep(i + "-" + FILENAME_RECORDING, new File(artifactsDir, FILENAME_RECORDING), false,
+                        Messages.Xvnc_RECORDING_SAVED(FILENAME_RECORDING));
+            }
+            if (checkpoints[i] != null) {
+                if (outcome.checkpointsSaved > 0) {
+                    saveCheckpoints(checkpoints[i], new File(artifactsDir, FILENAME_CHECKPOINTS), listener);
+                    listener.getLogger().println(Messages.Xvnc_CHECKPOINTS_SAVED(outcome.checkpointsSaved, outcome.checkpointsDropped, FILENAME_CHECKPOINTS));
+                }
+                checkpoints[i].delete();
+            } else if (held != null && outcome.checkpointsSaved > 0) {
+                held.keep(i + "-" + FILENAME_CHECKPOINTS + ".zip", new File(artifactsDir, FILENAME_CHECKPOINTS), true,
+                        Messages.Xvnc_CHECKPOINTS_SAVED(outcome.checkpointsSaved, outcome.checkpointsDropped, FILENAME_CHECKPOINTS));
+            }
+            if (screenshotTaken[i]) {
+                if (outcome.captureFailure != null) {
+                    listener.getLogger().println(Messages.Xvnc_SCREENSHOT_FALLBACK(outcome.captureFailure));
+                }
+                if (screenshots[i] != null && !outcome.screenshotSaved) {
+                    screenshots[i].delete();
+                } else if (screenshots[i] == null && outcome.screenshotSaved) {
+                    held.keep(i + "-" + screenshotName(env), new File(artifactsDir, screenshotName(env)), false, null);
+                }
+                XvncMetrics.SCREENSHOT.observe(outcome.screenshotMillis);
+            }
+
+            if (env.pooledDisplay() != null) {
+                DescriptorImpl config = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+                env.pool().release(build.getBuiltOn(), config, env.pooledDisplay(), env.xauthority(), listener);
+                continue;
+            }
+
+            XvncMetrics.KILL.observe(outcome.killMillis);
+            if (outcome.gone) {
+                env.backend().cleanUp(ws.getChannel(), env.displayNumber());
+                env.allocator().free(env.displayNumber());
+                LeaseJournal.get().released(build.getBuiltOn(), env.displayNumber());
+                Jenkins.getInstance().getQueue().scheduleMaintenance(); // Builds may be waiting for the number
             } else {
-                // Assume it can be shut down by being killed.
-                env.proc().kill();
+                // Keep it reserved; the journal releases it once the server is found gone
+                LeaseJournal.get().disowned(build.getBuiltOn(), env.displayNumber());
+                XvncMetrics.KILL_FAILURES.inc();
+                listener.error("Display :" + env.displayNumber() + " of " + build + " does not terminate, keeping it reserved");
             }
-            env.allocator().free(env.displayNumber());
-            env.xauthority().delete();
         }
-    };
+    }
+
+    private static String logName(XvncEnvironment env) {
+        return env.index() == 0 ? FILENAME_LOG : "xvnc-" + env.index() + ".log";
+    }
+
+    private static String screenshotName(XvncEnvironment env) {
+        return env.index() == 0 ? FILENAME_SCREENSHOT : "screenshot-" + env.index() + ".jpg";
+    }
+
+    /**
+     * Extract checkpoint screenshots received from the node as ZIP archive.
+     */
+    private static void saveCheckpoints(File zip, File dir, TaskListener listener) throws InterruptedException {
+        try {
+            new FilePath(zip).unzip(new FilePath(dir));
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to save checkpoint screenshots"));
+        }
+    }
+
+    private static OutputStream open(File file, List<OutputStream> streams) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        streams.add(out);
+        return new RemoteOutputStream(out);
+    }
 
     @Override
     public Environment setUp(AbstractBuild build, final Launcher launcher, BuildListener listener)
@@ -100,8 +496,7 @@ public class Xvnc extends BuildWrapper {
         DescriptorImpl DESCRIPTOR = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
 
         // skip xvnc execution
-        if (build.getBuiltOn().getAssignedLabels().contains(Jenkins.getInstance().getLabelAtom("noxvnc"))
-                || build.getBuiltOn().getNodeProperties().get(NodePropertyImpl.class) != null) {
+        if (isDisabledOn(build.getBuiltOn())) {
             return new Environment(){};
         }
 
@@ -110,108 +505,467 @@ public class Xvnc extends BuildWrapper {
         }
 
         if (DESCRIPTOR.cleanUp) {
-            maybeCleanUp(launcher, listener);
+            maybeCleanUp(build, launcher, listener, DESCRIPTOR);
         }
 
-        String cmd = Util.nullify(DESCRIPTOR.xvnc);
-        if (cmd == null) {
-            cmd = "vncserver :$DISPLAY_NUMBER -localhost -nolisten tcp";
+        DisplayBackend backend = getBackend(build.getBuiltOn());
+        if (usesPool(DESCRIPTOR, backend)) {
+            Environment pooled = leaseFromPool(build, launcher, logger, DESCRIPTOR, backend);
+            if (pooled != null) return pooled;
         }
 
-        return doSetUp(build, launcher, logger, cmd, 10, DESCRIPTOR.minDisplayNumber,
-                DESCRIPTOR.maxDisplayNumber);
+        return doSetUp(build, launcher, listener, backend, 10, DESCRIPTOR.minDisplayNumber,
+                DESCRIPTOR.maxDisplayNumber, DESCRIPTOR.readinessTimeout);
     }
 
-    private Environment doSetUp(AbstractBuild build, final Launcher launcher, final PrintStream logger,
-            String cmd, int retries, int minDisplayNumber, int maxDisplayNumber)
+    private Environment doSetUp(AbstractBuild build, final Launcher launcher, BuildListener listener,
+            DisplayBackend backend, int retries, int minDisplayNumber, int maxDisplayNumber, int readinessTimeout)
                     throws IOException, InterruptedException {
 
-        final DisplayAllocator allocator = getAllocator(build);
-
-        final int displayNumber = allocator.allocate(minDisplayNumber, maxDisplayNumber);
-        final String actualCmd = Util.replaceMacro(cmd, Collections.singletonMap("DISPLAY_NUMBER",String.valueOf(displayNumber)));
-
-        logger.println(Messages.Xvnc_STARTING());
-
-        String[] cmds = Util.tokenize(actualCmd);
+        final PrintStream logger = listener.getLogger();
+        final DisplayAllocator allocator = getProperty(build).getAllocator();
+        final Screen screen = getScreen(backend);
+        final String cmd = screen == null ? backend.getCommandline() : backend.getCommandline(screen);
+        final long framebufferSize = (screen == null ? backend.getDefaultScreen() : screen).getFramebufferSize();
 
-        final FilePath xauthority = build.getWorkspace().createTempFile(".Xauthority-", "");
+        // Created by the server, no need to ask the node for a temporary file
+        final FilePath xauthority = xauthority(build);
         final Map<String,String> xauthorityEnv = new HashMap<String, String>();
         if (useXauthority) {
             xauthorityEnv.put("XAUTHORITY", xauthority.getRemote());
         }
 
-        final Proc proc = launcher.launch().cmds(cmds).envs(xauthorityEnv).stdout(logger).pwd(build.getWorkspace()).start();
-        final String vncserverCommand;
-        if (cmds[0].endsWith("vncserver") && cmd.contains(":$DISPLAY_NUMBER")) {
-            // Command just started the server; -kill will stop it.
-            vncserverCommand = cmds[0];
-            int exit = proc.join();
-            if (exit != 0) {
-                // XXX I18N
-                String message = "Failed to run \'" + actualCmd + "\' (exit code " + exit + "), blacklisting display #" + displayNumber +
-                        "; consider checking the \"Clean up before start\" option";
-                // Do not release it; it may be "stuck" until cleaned up by an administrator.
-                //allocator.free(displayNumber);
-                allocator.blacklist(displayNumber);
-                if (retries > 0) {
-                    return doSetUp(build, launcher, logger, cmd, retries - 1,
-                            minDisplayNumber, maxDisplayNumber);
+        // Servers launched and not found broken
+        final List<Server> servers = new ArrayList<Server>();
+        boolean started = false;
+        try {
+            for (;;) {
+                // All at once so builds partially filling the node do not wait for each other
+                int need = getDisplays() - servers.size();
+                int[] displayNumbers = allocate(build, launcher, allocator, minDisplayNumber, maxDisplayNumber, need);
+                int[] spare = spare(build, launcher, allocator, minDisplayNumber, maxDisplayNumber, need, readinessTimeout);
+                String failure = null;
+                try {
+                    logger.println(Messages.Xvnc_STARTING());
+                    List<Server> launched = new ArrayList<Server>();
+                    for (int displayNumber: concat(displayNumbers, spare)) {
+                        allocator.setFramebufferSize(displayNumber, framebufferSize);
+                        Server server = new Server(displayNumber, cmd);
+                        backend.prepare(launcher.getChannel(), displayNumber);
+                        server.proc = ServerLog.launch(launcher, displayNumber, server.cmds, xauthorityEnv, build.getWorkspace().getRemote());
+                        server.vncserverCommand = backend.getStopCommand(cmd, server.cmds);
+                        servers.add(server);
+                        launched.add(server);
+                    }
+
+                    if (spare.length > 0) {
+                        failure = race(launched, need, servers, backend, launcher, listener, allocator,
+                                getProperty(build).getStartups(), xauthorityEnv, readinessTimeout);
+                    } else {
+                        for (Server server: launched) {
+                            String serverFailure = awaitStarted(server, backend, launcher, logger, xauthorityEnv, readinessTimeout);
+                            getProperty(build).getStartups().record(serverFailure != null);
+                            if (serverFailure == null) {
+                                allocator.healthy(server.displayNumber);
+                                continue;
+                            }
+
+                            failure = blacklist(server, serverFailure, servers, allocator, launcher, logger);
+                        }
+                    }
+                } finally {
+                    // Lock files and sockets of servers started keep other agents away from now on
+                    releaseHostLeases(launcher, concat(displayNumbers, spare));
+                }
+                if (failure == null) break;
+
+                if (retries-- <= 0) throw new IOException(failure);
+                XvncMetrics.RETRIES.inc();
+            }
+            started = true;
+        } finally {
+            if (!started) {
+                for (Server server: servers) {
+                    if (DisplayTeardown.terminate(launcher, server.displayNumber, server.vncserverCommand, server.proc, xauthorityEnv, listener)) {
+                        backend.cleanUp(launcher.getChannel(), server.displayNumber);
+                        allocator.free(server.displayNumber);
+                    }
+                    printOutput(launcher, server, logger);
+                }
+                xauthority.delete();
+            }
+        }
+
+        List<XvncEnvironment> envs = new ArrayList<XvncEnvironment>();
+        for (int i = 0; i < servers.size(); i++) {
+            Server server = servers.get(i);
+            LeaseJournal.get().acquired(build.getBuiltOn(), server.displayNumber, build.getExternalizableId(), server.pid);
+
+            String checkpoints = null;
+            FilePath checkpointDir = null;
+            if (i == 0 && this.checkpoints) {
+                checkpointDir = checkpointDir(build);
+                checkpoints = startCheckpoints(launcher, logger, server.displayNumber, backend, checkpointDir, xauthorityEnv);
+            }
+            XvncEnvironment env = new XvncEnvironment(takeScreenshot, build, logger,  xauthorityEnv, server.displayNumber,
+                    server.vncserverCommand, server.proc, allocator, xauthority, null, null,
+                    i == 0 ? startRecording(launcher, logger, server.displayNumber) : null, backend, i,
+                    checkpoints, checkpoints == null ? null : checkpointDir, screenshotsOnFailure, server.proc.getLog());
+            build.addAction(env);
+            envs.add(env);
+        }
+        return createEnvironment(envs, xauthorityEnv);
+    }
+
+    /**
+     * Numbers to start spare servers on, when recent starts on the node have failed often enough to be worth
+     * starting more servers than needed and keeping those ready first.
+     *
+     * @return The numbers, or none when not speculating or none are free.
+     */
+    private int[] spare(AbstractBuild build, Launcher launcher, DisplayAllocator allocator, int minDisplayNumber,
+            int maxDisplayNumber, int need, int readinessTimeout) throws IOException, InterruptedException {
+        DescriptorImpl config = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+        int spare = config.speculativeCandidates - need;
+        if (spare <= 0 || readinessTimeout <= 0) return new int[0];
+        if (getProperty(build).getStartups().failureRate() < config.speculationThreshold) return new int[0];
+
+        BitSet free = DisplayScanner.free(launcher.getChannel(), minDisplayNumber, maxDisplayNumber);
+        try {
+            String hostLeases = config.getHostLeaseDirectory();
+            if (hostLeases != null) {
+                return HostLeases.allocate(launcher.getChannel(), hostLeases, allocator, minDisplayNumber, maxDisplayNumber, free, spare);
+            }
+            return allocator.allocate(minDisplayNumber, maxDisplayNumber, free, spare);
+        } catch (RuntimeException e) {
+            return new int[0]; // Not worth waiting for
+        }
+    }
+
+    /**
+     * Keep the first servers to become ready and stop the others. When too few get ready in time, those that
+     * did not are failures.
+     *
+     * @return Failure or null when enough servers are ready.
+     */
+    private String race(List<Server> launched, int need, List<Server> servers, DisplayBackend backend, Launcher launcher,
+            TaskListener listener, DisplayAllocator allocator, StartupHistory startups, Map<String, String> xauthorityEnv,
+            int readinessTimeout) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        int[] numbers = new int[launched.size()];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = launched.get(i).displayNumber;
+        }
+        BitSet ready = DisplayReadiness.awaitAny(launcher.getChannel(), numbers, need, readinessTimeout * 1000L);
+        boolean enough = ready.cardinality() >= need;
+
+        String failure = null;
+        int kept = 0;
+        for (Server server: launched) {
+            if (ready.get(server.displayNumber) && kept < need) {
+                String serverFailure = awaitStarted(server, backend, launcher, logger, xauthorityEnv, readinessTimeout);
+                startups.record(serverFailure != null);
+                if (serverFailure == null) {
+                    allocator.healthy(server.displayNumber);
+                    kept++;
                 } else {
-                    throw new IOException(message);
+                    failure = blacklist(server, serverFailure, servers, allocator, launcher, logger);
                 }
+            } else if (enough) {
+                // Lost the race, nothing wrong with it
+                logger.println(Messages.Xvnc_SPARE_STOPPED(server.displayNumber));
+                servers.remove(server);
+                if (DisplayTeardown.terminate(launcher, server.displayNumber, server.vncserverCommand, server.proc, xauthorityEnv, listener)) {
+                    backend.cleanUp(launcher.getChannel(), server.displayNumber);
+                    allocator.free(server.displayNumber);
+                } else {
+                    allocator.blacklist(server.displayNumber);
+                }
+                if (server.vncserverCommand != null) {
+                    server.proc.kill(); // Wrapper may still be waiting for the server
+                }
+                launcher.getChannel().call(ServerLog.close(server.proc.getLog(), null));
+                XvncMetrics.SPARE_STOPPED.inc();
+            } else {
+                kill(server, launcher, xauthorityEnv, logger);
+                startups.record(true);
+                failure = blacklist(server, "Display :" + server.displayNumber + " not ready " + readinessTimeout
+                        + " seconds after running \'" + server.actualCmd + "\'", servers, allocator, launcher, logger);
+            }
+        }
+        return kept < need && failure == null ? "Too few displays ready" : failure;
+    }
+
+    /**
+     * Blacklist number of server that failed to start.
+     *
+     * @return Failure to report.
+     */
+    private static String blacklist(Server server, String serverFailure, List<Server> servers, DisplayAllocator allocator,
+            Launcher launcher, PrintStream logger) throws InterruptedException {
+        // Do not release it; it may be "stuck" until cleaned up by an administrator.
+        //allocator.free(displayNumber);
+        allocator.blacklist(server.displayNumber);
+        servers.remove(server);
+        printOutput(launcher, server, logger);
+        return serverFailure + ", blacklisting display #" + server.displayNumber +
+                "; consider checking the \"Clean up before start\" option";
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        int[] ret = new int[a.length + b.length];
+        System.arraycopy(a, 0, ret, 0, a.length);
+        System.arraycopy(b, 0, ret, a.length, b.length);
+        return ret;
+    }
+
+    /**
+     * Wait for launched server to start.
+     *
+     * @return Failure or null when the display is ready.
+     */
+    private String awaitStarted(Server server, DisplayBackend backend, Launcher launcher, PrintStream logger,
+            Map<String, String> xauthorityEnv, int readinessTimeout) throws IOException, InterruptedException {
+        // XXX I18N
+        if (server.vncserverCommand != null) {
+            // Command just started the server; -kill will stop it.
+            int exit = server.proc.join();
+            if (exit != 0) {
+                return "Failed to run \'" + server.actualCmd + "\' (exit code " + exit + ")";
             }
+        }
+
+        DisplayReadiness.Started started = backend.awaitReady(launcher.getChannel(), server.displayNumber, Math.max(0, readinessTimeout) * 1000L);
+        server.pid = started.pid;
+        if (readinessTimeout > 0) {
+            long ready = started.ready;
+            if (ready < 0) {
+                kill(server, launcher, xauthorityEnv, logger);
+                return "Display :" + server.displayNumber + " not ready " + readinessTimeout + " seconds after running \'" + server.actualCmd + "\'";
+            }
+            logger.println(Messages.Xvnc_READY(server.displayNumber, ready));
+        }
+        XvncMetrics.STARTUP.since(server.launched);
+        return null;
+    }
+
+    private static void kill(Server server, Launcher launcher, Map<String, String> xauthorityEnv, PrintStream logger)
+            throws IOException, InterruptedException {
+        if (server.vncserverCommand != null) {
+            launcher.launch().cmds(server.vncserverCommand, "-kill", ":" + server.displayNumber).envs(xauthorityEnv).stdout(logger).join();
         } else {
-            vncserverCommand = null;
+            server.proc.kill();
+        }
+    }
+
+    /**
+     * Print last lines of output of a server that failed to start and delete its log.
+     */
+    private static void printOutput(Launcher launcher, Server server, PrintStream logger) throws InterruptedException {
+        try {
+            String tail = launcher.getChannel().call(ServerLog.close(server.proc.getLog(), null));
+            if (tail.length() > 0) {
+                logger.println(Messages.Xvnc_SERVER_OUTPUT(server.displayNumber));
+                logger.print(tail);
+            }
+        } catch (IOException e) {
+            e.printStackTrace(logger);
+        }
+    }
+
+    /**
+     * Server being started for the build.
+     */
+    private static final class Server {
+        private final int displayNumber;
+        private final String actualCmd;
+        private final String[] cmds;
+        private final long launched = System.currentTimeMillis();
+        private ServerLog.Launched proc;
+        private String vncserverCommand;
+        private int pid = -1;
+
+        private Server(int displayNumber, String cmd) {
+            this.displayNumber = displayNumber;
+            this.actualCmd = Util.replaceMacro(cmd, Collections.singletonMap("DISPLAY_NUMBER",String.valueOf(displayNumber)));
+            this.cmds = expandCommand(cmd, displayNumber);
+        }
+    }
+
+    private static boolean isDisabledOn(Node node) {
+        return node.getAssignedLabels().contains(Jenkins.getInstance().getLabelAtom("noxvnc"))
+                || node.getNodeProperties().get(NodePropertyImpl.class) != null;
+    }
+
+    /**
+     * Whether the build will start a display on the node, as far as can be told before it runs there.
+     */
+    /*package*/ boolean needsDisplay(Node node) {
+        if (isDisabledOn(node)) return false;
+
+        DescriptorImpl config = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+        Computer computer = node.toComputer();
+        return !(config.skipOnWindows && computer != null && Boolean.FALSE.equals(computer.isUnix()));
+    }
+
+    private static void releaseHostLeases(Launcher launcher, int[] displayNumbers) throws IOException, InterruptedException {
+        String hostLeases = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class).getHostLeaseDirectory();
+        if (hostLeases != null) {
+            HostLeases.release(launcher.getChannel(), hostLeases, displayNumbers);
+        }
+    }
+
+    private int[] allocate(AbstractBuild build, Launcher launcher, DisplayAllocator allocator, int minDisplayNumber, int maxDisplayNumber, int count)
+            throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        String hostLeases = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class).getHostLeaseDirectory();
+        BitSet free = DisplayScanner.free(launcher.getChannel(), minDisplayNumber, maxDisplayNumber);
+        try {
+            if (hostLeases != null) {
+                return HostLeases.allocate(launcher.getChannel(), hostLeases, allocator, minDisplayNumber, maxDisplayNumber, free, count);
+            }
+            return allocator.allocate(minDisplayNumber, maxDisplayNumber, free, count);
+        } catch (RuntimeException e) {
+            // Numbers of completed builds return once their servers are gone
+            if (!getProperty(build).getTeardown().drain(DisplayTeardown.TIMEOUT * 1000L)) throw e;
+
+            free = DisplayScanner.free(launcher.getChannel(), minDisplayNumber, maxDisplayNumber);
+            if (hostLeases != null) {
+                return HostLeases.allocate(launcher.getChannel(), hostLeases, allocator, minDisplayNumber, maxDisplayNumber, free, count);
+            }
+            return allocator.allocate(minDisplayNumber, maxDisplayNumber, free, count);
+        } finally {
+            XvncMetrics.ALLOCATION_WAIT.since(start);
+        }
+    }
+
+    /**
+     * @return Recording id or null if not recording.
+     */
+    private String startRecording(Launcher launcher, PrintStream logger, int displayNumber) throws InterruptedException {
+        if (!recordOnFailure) return null;
+
+        DescriptorImpl config = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+        try {
+            return ScreenRecorder.start(launcher.getChannel(), displayNumber, config.recordingFrameRate,
+                    config.recordingLength, config.recordingMemory * 1024L * 1024L);
+        } catch (IOException e) {
+            logger.println(Messages.Xvnc_RECORDING_FAILED(e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * @return Checkpoint watcher id or null if checkpoints can not be taken.
+     */
+    private String startCheckpoints(Launcher launcher, PrintStream logger, int displayNumber, DisplayBackend backend,
+            FilePath dir, Map<String, String> xauthorityEnv) throws InterruptedException {
+        try {
+            return ScreenCheckpoints.start(launcher.getChannel(), displayNumber, backend, dir.getRemote(), xauthorityEnv);
+        } catch (IOException e) {
+            logger.println(Messages.Xvnc_CHECKPOINTS_FAILED(e.getMessage()));
+            return null;
+        }
+    }
+
+    private Environment leaseFromPool(AbstractBuild build, Launcher launcher, PrintStream logger, DescriptorImpl config, DisplayBackend backend)
+            throws IOException, InterruptedException {
+
+        final DisplayAllocator.Property property = getProperty(build);
+        final DisplayPool pool = property.getPool();
+        final DisplayPool.PooledDisplay display = pool.lease(build.getBuiltOn(), config, launcher.getChannel());
+        if (display == null) return null;
+
+        logger.println(Messages.Xvnc_LEASING(display.displayNumber));
+        LeaseJournal.get().acquired(build.getBuiltOn(), display.displayNumber, build.getExternalizableId(), display.pid);
+
+        // Created by the server, no need to ask the node for a temporary file
+        final FilePath xauthority = xauthority(build);
+        display.xauthority.copyTo(xauthority);
+        final Map<String,String> xauthorityEnv = new HashMap<String, String>();
+        xauthorityEnv.put("XAUTHORITY", xauthority.getRemote());
+
+        String checkpoints = null;
+        FilePath checkpointDir = null;
+        if (this.checkpoints) {
+            checkpointDir = checkpointDir(build);
+            checkpoints = startCheckpoints(launcher, logger, display.displayNumber, backend, checkpointDir, xauthorityEnv);
         }
+        XvncEnvironment env = new XvncEnvironment(takeScreenshot, build, logger,  xauthorityEnv, display.displayNumber,
+                display.vncserverCommand, display.proc, property.getAllocator(), xauthority, pool, display,
+                startRecording(launcher, logger, display.displayNumber), backend, 0,
+                checkpoints, checkpoints == null ? null : checkpointDir, screenshotsOnFailure, null);
+        build.addAction(env);
+        return createEnvironment(Collections.singletonList(env), xauthorityEnv);
+    }
 
-        build.addAction(new XvncEnvironment(takeScreenshot, build, logger,  xauthorityEnv, displayNumber,
-                vncserverCommand, proc, allocator, xauthority));
+    /**
+     * Displays are released as soon as the wrapper goes out of scope, before the build completes.
+     */
+    private static FilePath xauthority(AbstractBuild<?, ?> build) {
+        return build.getWorkspace().child(".Xauthority-" + UUID.randomUUID());
+    }
+
+    private static FilePath checkpointDir(AbstractBuild<?, ?> build) {
+        return build.getWorkspace().child(".xvnc-checkpoints-" + UUID.randomUUID());
+    }
 
+    private Environment createEnvironment(final List<XvncEnvironment> envs, final Map<String, String> xauthorityEnv) {
         return new Environment() {
 
                 @Override
             public void buildEnvVars(Map<String, String> env) {
-                env.put("DISPLAY",":"+displayNumber);
+                env.put("DISPLAY",":"+envs.get(0).displayNumber());
+                StringBuilder displays = new StringBuilder();
+                for (XvncEnvironment display: envs) {
+                    if (displays.length() > 0) displays.append(',');
+                    displays.append(':').append(display.displayNumber());
+                }
+                env.put("XVNC_DISPLAYS", displays.toString());
+                if (envs.get(0).checkpointDir() != null) {
+                    env.put("XVNC_CHECKPOINTS", envs.get(0).checkpointDir().getRemote());
+                }
                 env.putAll(xauthorityEnv);
             }
 
             @Override
             public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
+                List<XvncEnvironment> released = new ArrayList<XvncEnvironment>();
+                for (XvncEnvironment env: envs) {
+                    if (env.release()) released.add(env);
+                }
+                if (!released.isEmpty()) {
+                    // Publishers have not run yet, the result is not final
+                    Xvnc.release(build, released, build.getResult(), false);
+                }
                 return true;
             }
         };
     }
 
-    private DisplayAllocator getAllocator(AbstractBuild<?, ?> build) throws IOException {
-        DisplayAllocator.Property property = build.getBuiltOn().getNodeProperties().get(DisplayAllocator.Property.class);
-        if (property == null) {
-            property = new DisplayAllocator.Property();
-            build.getBuiltOn().getNodeProperties().add(property);
-        }
-        return property.getAllocator();
+    private DisplayAllocator.Property getProperty(AbstractBuild<?, ?> build) throws IOException {
+        return DisplayAllocator.Property.of(build.getBuiltOn());
+    }
+
+    /*package*/ static String[] expandCommand(String cmd, int displayNumber) {
+        final String actualCmd = Util.replaceMacro(cmd, Collections.singletonMap("DISPLAY_NUMBER",String.valueOf(displayNumber)));
+        return Util.tokenize(actualCmd);
     }
 
     /**
-     * Whether {@link #maybeCleanUp} has already been run on a given node.
+     * Command just starts the server and exits; <tt>-kill</tt> will stop it.
      */
-    private static final Map<Node,Boolean> cleanedUpOn = new WeakHashMap<Node,Boolean>();
+    /*package*/ static boolean isVncserverWrapper(String cmd, String[] cmds) {
+        return cmds[0].endsWith("vncserver") && cmd.contains(":$DISPLAY_NUMBER");
+    }
 
     // XXX I18N
-    private static synchronized void maybeCleanUp(Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
-        Node node = Computer.currentComputer().getNode();
-        if (cleanedUpOn.put(node, true) != null) {
-            return;
-        }
+    private static void maybeCleanUp(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, DescriptorImpl config) throws IOException, InterruptedException {
         if (!launcher.isUnix()) {
             listener.error("Clean up not currently implemented for non-Unix nodes; skipping");
             return;
         }
-        PrintStream logger = listener.getLogger();
-        // ignore any error return codes
-        launcher.launch().stdout(logger).cmds("pkill", "Xvnc").join();
-        launcher.launch().stdout(logger).cmds("pkill", "Xrealvnc").join();
-        launcher.launch().stdout(logger).cmds("sh", "-c", "rm -f /tmp/.X*-lock /tmp/.X11-unix/X*").join();
+        OrphanCleaner.cleanUp(build.getBuiltOn(), launcher.getChannel(), listener);
     }
 
     @Extension
@@ -244,6 +998,72 @@ public class Xvnc extends BuildWrapper {
          */
         public boolean cleanUp = false;
 
+        /**
+         * Number of idle displays kept running on every node. 0 disables the pool.
+         */
+        public int poolSize = 0;
+
+        /**
+         * Number of builds a pooled display serves before it is restarted. 0 means unlimited.
+         */
+        public int poolMaxUses = 20;
+
+        /**
+         * Minutes a pooled display is kept running before it is restarted. 0 means unlimited.
+         */
+        public int poolMaxAge = 60;
+
+        /**
+         * Seconds to wait for the display to accept connections after launch. 0 disables the check.
+         */
+        public int readinessTimeout = 10;
+
+        /**
+         * Display servers chosen by node label, first match wins.
+         */
+        public List<BackendRule> backendRules = new ArrayList<BackendRule>();
+
+        /**
+         * Frames per second sampled by recordings.
+         */
+        public int recordingFrameRate = 2;
+
+        /**
+         * Seconds before build completion kept by recordings.
+         */
+        public int recordingLength = 30;
+
+        /**
+         * Megabytes of memory a recording can use on the node.
+         */
+        public int recordingMemory = 32;
+
+        /**
+         * Directory shared by agents on the same host to lease display numbers in, or empty not to lease them.
+         */
+        public String hostLeaseDirectory;
+
+        /**
+         * Servers started at once for a build when recent starts on the node have failed often, keeping those
+         * ready first. 0 or 1 to start only those needed.
+         */
+        public int speculativeCandidates = 0;
+
+        /**
+         * Percentage of recent starts on the node failed to start spare servers.
+         */
+        public int speculationThreshold = 30;
+
+        /**
+         * Frames per second a viewer of running build gets of a display, at most. 0 disables the live view.
+         */
+        public int liveViewFrameRate = 2;
+
+        /**
+         * Frames per second taken of all displays of a node for viewers together, at most. 0 means unlimited.
+         */
+        public int liveViewNodeFrameRate = 10;
+
         public DescriptorImpl() {
             super(Xvnc.class);
             load();
@@ -257,7 +1077,9 @@ public class Xvnc extends BuildWrapper {
         @Override
         public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
             // XXX is this now the right style?
+            Object rules = json.remove("backendRules");
             req.bindJSON(this,json);
+            backendRules = rules == null ? new ArrayList<BackendRule>() : req.bindJSONToList(BackendRule.class, rules);
             save();
             return true;
         }
@@ -271,10 +1093,34 @@ public class Xvnc extends BuildWrapper {
             return xvnc;
         }
 
+        /**
+         * @return The directory, or null when leases are not used.
+         */
+        public String getHostLeaseDirectory() {
+            return Util.fixEmptyAndTrim(hostLeaseDirectory);
+        }
+
+        public List<BackendRule> getBackendRules() {
+            return backendRules == null ? Collections.<BackendRule>emptyList() : backendRules;
+        }
+
+        /*package*/ String getEffectiveCommandline() {
+            String cmd = Util.nullify(xvnc);
+            return cmd == null ? "vncserver :$DISPLAY_NUMBER -localhost -nolisten tcp" : cmd;
+        }
+
         public void setCommandline(String value) {
             this.xvnc = value;
         }
 
+        public FormValidation doCheckGeometry(@QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            if (value == null || value.matches("\\d+x\\d+")) {
+                return FormValidation.ok();
+            }
+            return FormValidation.error("Expected WIDTHxHEIGHT, for example 1920x1080");
+        }
+
         public FormValidation doCheckCommandline(@QueryParameter String value) {
             if (Util.nullify(value) == null || value.contains("$DISPLAY_NUMBER")) {
                 return FormValidation.ok();
@@ -286,6 +1132,7 @@ public class Xvnc extends BuildWrapper {
 
     public Object readResolve() {
         if (useXauthority == null) useXauthority = true;
+        if (displays < 1) displays = 1;
         return this;
     }
 }
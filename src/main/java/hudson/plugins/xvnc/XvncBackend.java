@@ -0,0 +1,53 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.remoting.Callable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Xvnc started by the command line configured globally, <tt>vncserver</tt> by default.
+ *
+ * The screen is read over RFB.
+ */
+public class XvncBackend extends DisplayBackend {
+
+    @DataBoundConstructor
+    public XvncBackend() {}
+
+    @Override
+    public String getCommandline() {
+        return Hudson.getInstance().getDescriptorByType(Xvnc.DescriptorImpl.class).getEffectiveCommandline();
+    }
+
+    /**
+     * Options understood by both <tt>vncserver</tt> and <tt>Xvnc</tt>. Given last, they take precedence over
+     * those of the configured command line.
+     */
+    @Override
+    public String getCommandline(Screen screen) {
+        return getCommandline() + " -geometry " + screen.getGeometry() + " -depth " + screen.depth;
+    }
+
+    @Override
+    public String getStopCommand(String cmd, String[] cmds) {
+        return Xvnc.isVncserverWrapper(cmd, cmds) ? cmds[0] : null;
+    }
+
+    @Override
+    public Callable<Void, IOException> capture(int displayNumber, OutputStream out) {
+        return Screenshot.capture(displayNumber, out);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends BackendDescriptor {
+        @Override
+        public String getDisplayName() {
+            return "Xvnc";
+        }
+    }
+}
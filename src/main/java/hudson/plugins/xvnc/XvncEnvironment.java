@@ -20,10 +20,24 @@ public class XvncEnvironment extends InvisibleAction {
     private Proc proc;
     private DisplayAllocator allocator;
     private FilePath xauthority;
+    private transient DisplayPool pool;
+    private transient DisplayPool.PooledDisplay pooledDisplay;
+    private String recording;
+    private DisplayBackend backend;
+    private int index;
+    private String checkpoints;
+    private FilePath checkpointDir;
+    private boolean onlyOnFailure;
+    private String serverLog;
+    private boolean released;
+    private transient HeldCaptures held;
+    private transient TeardownReport report;
 
     public XvncEnvironment(boolean takeScreenshot, AbstractBuild<?, ?> build, PrintStream logger, 
             Map<String, String> xauthorityEnv, int displayNumber, String vncserverCommand, Proc proc, DisplayAllocator allocator,
-            FilePath xauthority) {
+            FilePath xauthority, DisplayPool pool, DisplayPool.PooledDisplay pooledDisplay, String recording,
+            DisplayBackend backend, int index, String checkpoints, FilePath checkpointDir, boolean onlyOnFailure,
+            String serverLog) {
         this.takeScreenshot = takeScreenshot;
         this.build = build;
         this.logger = logger;
@@ -33,6 +47,15 @@ public class XvncEnvironment extends InvisibleAction {
         this.proc = proc;
         this.allocator = allocator;
         this.xauthority = xauthority;
+        this.pool = pool;
+        this.pooledDisplay = pooledDisplay;
+        this.recording = recording;
+        this.backend = backend;
+        this.index = index;
+        this.checkpoints = checkpoints;
+        this.checkpointDir = checkpointDir;
+        this.onlyOnFailure = onlyOnFailure;
+        this.serverLog = serverLog;
     }
 
     public boolean takeScreenshot() {
@@ -70,4 +93,101 @@ public class XvncEnvironment extends InvisibleAction {
     public FilePath xauthority() {
         return xauthority;
     }
+
+    /*package*/ DisplayPool pool() {
+        return pool;
+    }
+
+    /**
+     * Display leased from the pool, or null when the server was started for this build.
+     */
+    /*package*/ DisplayPool.PooledDisplay pooledDisplay() {
+        return pooledDisplay;
+    }
+
+    /**
+     * Id of {@link ScreenRecorder} recording of the display, or null.
+     */
+    /*package*/ String recording() {
+        return recording;
+    }
+
+    /*package*/ DisplayBackend backend() {
+        return backend;
+    }
+
+    /**
+     * Id of {@link ScreenCheckpoints} watcher of the display, or null.
+     */
+    /*package*/ String checkpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * Directory the build creates checkpoint files in, or null.
+     */
+    /*package*/ FilePath checkpointDir() {
+        return checkpointDir;
+    }
+
+    /**
+     * Keep screenshots of failed builds only.
+     */
+    /*package*/ boolean onlyOnFailure() {
+        return onlyOnFailure;
+    }
+
+    /**
+     * Id of {@link ServerLog} of the server started for the build, or null.
+     */
+    /*package*/ String serverLog() {
+        return serverLog;
+    }
+
+    /**
+     * Position of the display among displays of the build.
+     */
+    /*package*/ int index() {
+        return index;
+    }
+
+    /**
+     * Claim the display for teardown.
+     *
+     * @return false when the display was already released.
+     */
+    /*package*/ synchronized boolean release() {
+        if (released) return false;
+        released = true;
+        return true;
+    }
+
+    /*package*/ synchronized boolean released() {
+        return released;
+    }
+
+    /**
+     * Captures of the display are held on the node until the build completes.
+     */
+    /*package*/ synchronized void hold(HeldCaptures held) {
+        this.held = held;
+    }
+
+    /**
+     * @return Captures held on the node, or null.
+     */
+    /*package*/ synchronized HeldCaptures held() {
+        return held;
+    }
+
+    /*package*/ synchronized void report(TeardownReport report) {
+        this.report = report;
+    }
+
+    /**
+     * @return Output of the teardown for the build log, or null before the display is released.
+     */
+    /*package*/ synchronized TeardownReport report() {
+        return report;
+    }
 }
@@ -0,0 +1,217 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Counters and latency histograms of display allocation, startup and teardown.
+ *
+ * Values are recorded with single atomic updates and never take the allocator or any other lock.
+ * Administrators can read them at <tt>/xvnc-metrics/</tt> in Prometheus text format, together with
+ * displays in use per node sampled when the page is requested.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class XvncMetrics implements RootAction {
+
+    public static final Counter ALLOCATIONS = new Counter("xvnc_allocations_total", "Display numbers allocated");
+    public static final Counter ALLOCATION_FAILURES = new Counter("xvnc_allocation_failures_total", "Allocations failed for all numbers being taken");
+    public static final Counter ALLOCATION_PROBES = new Counter("xvnc_allocation_probes_total", "Bitmap words inspected by allocations, including lost races");
+    public static final Counter RETRIES = new Counter("xvnc_startup_retries_total", "Server starts retried on another display number");
+    public static final Counter BLACKLISTED = new Counter("xvnc_blacklisted_total", "Display numbers blacklisted");
+    public static final Counter KILL_FAILURES = new Counter("xvnc_kill_failures_total", "Servers still running after all termination attempts");
+    public static final Counter REAPED = new Counter("xvnc_reaped_total", "Leaked display numbers, servers and files reclaimed in background");
+    public static final Counter SPARE_STOPPED = new Counter("xvnc_spare_stopped_total", "Spare servers stopped for others becoming ready first");
+    public static final Counter HOST_LEASE_CONFLICTS = new Counter("xvnc_host_lease_conflicts_total", "Display numbers skipped for being leased by another agent on the host");
+
+    public static final Histogram ALLOCATION_WAIT = new Histogram("xvnc_allocation_wait_milliseconds", "Time to find a free display number");
+    public static final Histogram STARTUP = new Histogram("xvnc_startup_milliseconds", "Time from server launch to display being ready");
+    public static final Histogram SCREENSHOT = new Histogram("xvnc_screenshot_milliseconds", "Time to take screenshot");
+    public static final Histogram KILL = new Histogram("xvnc_kill_milliseconds", "Time to terminate server");
+
+    private static final Counter[] COUNTERS = {ALLOCATIONS, ALLOCATION_FAILURES, ALLOCATION_PROBES, RETRIES, BLACKLISTED, KILL_FAILURES, REAPED, HOST_LEASE_CONFLICTS, SPARE_STOPPED};
+    private static final Histogram[] HISTOGRAMS = {ALLOCATION_WAIT, STARTUP, SCREENSHOT, KILL};
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "xvnc-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins jenkins = Jenkins.getInstance();
+        jenkins.checkPermission(Jenkins.ADMINISTER);
+
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter out = rsp.getWriter();
+        for (Counter counter: COUNTERS) {
+            counter.write(out);
+        }
+        for (Histogram histogram: HISTOGRAMS) {
+            histogram.write(out);
+        }
+
+        Xvnc.DescriptorImpl config = jenkins.getDescriptorByType(Xvnc.DescriptorImpl.class);
+        int capacity = Math.max(0, config.maxDisplayNumber - config.minDisplayNumber + 1);
+        List<Node> nodes = new ArrayList<Node>();
+        List<DisplayAllocator.Property> properties = new ArrayList<DisplayAllocator.Property>();
+        List<Node> all = new ArrayList<Node>(jenkins.getNodes());
+        all.add(jenkins);
+        for (Node node: all) {
+            DisplayAllocator.Property property = node.getNodeProperties().get(DisplayAllocator.Property.class);
+            if (property != null) {
+                nodes.add(node);
+                properties.add(property);
+            }
+        }
+
+        header(out, "xvnc_displays_capacity", "gauge", "Display numbers configured for allocation on every node");
+        out.println("xvnc_displays_capacity " + capacity);
+        header(out, "xvnc_displays_in_use", "gauge", "Display numbers allocated on node");
+        for (int i = 0; i < nodes.size(); i++) {
+            out.println("xvnc_displays_in_use" + label(nodes.get(i)) + " " + properties.get(i).getAllocator().allocatedCount());
+        }
+        header(out, "xvnc_pool_idle", "gauge", "Idle pooled displays on node");
+        for (int i = 0; i < nodes.size(); i++) {
+            out.println("xvnc_pool_idle" + label(nodes.get(i)) + " " + properties.get(i).getPool().idleCount());
+        }
+        header(out, "xvnc_teardown_pending", "gauge", "Teardowns queued or running on node");
+        for (int i = 0; i < nodes.size(); i++) {
+            out.println("xvnc_teardown_pending" + label(nodes.get(i)) + " " + properties.get(i).getTeardown().pending());
+        }
+        out.flush();
+    }
+
+    private static String label(Node node) {
+        String name = node.getNodeName().length() == 0 ? "master" : node.getNodeName();
+        return "{node=\"" + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    private static void header(PrintWriter out, String name, String type, String help) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " " + type);
+    }
+
+    public static final class Counter {
+        private final String name;
+        private final String help;
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        /*package*/ void write(PrintWriter out) {
+            header(out, name, "counter", help);
+            out.println(name + " " + value.get());
+        }
+    }
+
+    /**
+     * Histogram with fixed buckets in milliseconds.
+     */
+    public static final class Histogram {
+        /**
+         * Upper bounds of all but the last bucket, inclusive.
+         */
+        private static final long[] BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+        private final String name;
+        private final String help;
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        private final AtomicLong sum = new AtomicLong();
+
+        private Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void observe(long millis) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            sum.addAndGet(millis);
+        }
+
+        /**
+         * Record time elapsed since start, as returned by {@link System#currentTimeMillis()}.
+         */
+        public void since(long start) {
+            observe(System.currentTimeMillis() - start);
+        }
+
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Observations per bucket.
+         */
+        /*package*/ long[] counts() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+
+        /**
+         * Upper bound of the bucket, inclusive.
+         */
+        /*package*/ static long bound(int bucket) {
+            return bucket < BOUNDS.length ? BOUNDS[bucket] : Long.MAX_VALUE;
+        }
+
+        /*package*/ void write(PrintWriter out) {
+            header(out, name, "histogram", help);
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                cumulative += buckets.get(i);
+                String le = i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf";
+                out.println(name + "_bucket{le=\"" + le + "\"} " + cumulative);
+            }
+            out.println(name + "_sum " + sum.get());
+            out.println(name + "_count " + cumulative);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Draws tiles of displays of a running build as they change. Next poll is sent once the previous tiles are
+ * drawn, after the time the controller asks for, and not at all while the page is hidden.
+ */
+(function() {
+    function watch(canvas) {
+        var context = canvas.getContext("2d");
+        var since = -1;
+
+        function poll() {
+            if (document.hidden) {
+                setTimeout(poll, 1000);
+                return;
+            }
+            var request = new XMLHttpRequest();
+            request.open("GET", canvas.getAttribute("data-url") + "&since=" + since);
+            request.onload = function() {
+                if (request.status != 200) {
+                    // Build completed or display gone
+                    canvas.style.opacity = 0.5;
+                    return;
+                }
+                draw(JSON.parse(request.responseText));
+            };
+            request.onerror = function() {
+                setTimeout(poll, 5000);
+            };
+            request.send();
+        }
+
+        function draw(update) {
+            var images = [];
+            var pending = update.tiles.length;
+            function done() {
+                if (canvas.width != update.width || canvas.height != update.height) {
+                    canvas.width = update.width;
+                    canvas.height = update.height;
+                }
+                for (var i = 0; i < images.length; i++) {
+                    context.drawImage(images[i], update.tiles[i][0], update.tiles[i][1]);
+                }
+                since = update.frame;
+                setTimeout(poll, update.next);
+            }
+            if (pending == 0) {
+                done();
+                return;
+            }
+            for (var i = 0; i < update.tiles.length; i++) {
+                var image = new Image();
+                image.onload = image.onerror = function() {
+                    if (--pending == 0) done();
+                };
+                image.src = "data:image/jpeg;base64," + update.tiles[i][2];
+                images.push(image);
+            }
+        }
+
+        poll();
+    }
+
+    var canvases = document.querySelectorAll("canvas.xvnc-live");
+    for (var i = 0; i < canvases.length; i++) {
+        watch(canvases[i]);
+    }
+})();
@@ -3,10 +3,19 @@ package hudson.plugins.xvnc;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.junit.Assert.assertThat;
 
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -88,6 +97,74 @@ public class DisplayAllocatorTest {
         }
     }
 
+    @Test
+    public void doesNotAllocateNumberBeingBlacklisted() throws Exception {
+        for (int round = 0; round < 500; round++) {
+            final DisplayAllocator allocator = new DisplayAllocator();
+            final int badDisplay = allocator.allocate(MIN, MIN + 1);
+            final AtomicBoolean allocatedBad = new AtomicBoolean();
+            final CountDownLatch started = new CountDownLatch(1);
+            // Single thread, so the other number is free whenever it allocates and the bad one is never needed
+            Thread thread = new Thread() {
+                @Override public void run() {
+                    started.countDown();
+                    for (int i = 0; i < 200; i++) {
+                        int display = allocator.allocate(MIN, MIN + 1);
+                        if (display == badDisplay) {
+                            allocatedBad.set(true);
+                        }
+                        allocator.free(display);
+                    }
+                }
+            };
+            thread.start();
+            started.await();
+            allocator.blacklist(badDisplay);
+            thread.join();
+            assertFalse("Blacklisted display allocated in round " + round, allocatedBad.get());
+        }
+    }
+
+    @Test
+    public void doublesQuarantineOfRepeatedFailures() {
+        long before = System.currentTimeMillis();
+        allocator.blacklist(MIN);
+        long first = allocator.quarantinedUntil(MIN) - before;
+        allocator.blacklist(MIN);
+        long second = allocator.quarantinedUntil(MIN) - before;
+        assertTrue(first >= DisplayAllocator.QUARANTINE * 1000 && first < DisplayAllocator.QUARANTINE * 1000 + 1000);
+        assertTrue(second >= 2 * DisplayAllocator.QUARANTINE * 1000 && second < 2 * DisplayAllocator.QUARANTINE * 1000 + 1000);
+        assertEquals(Collections.singletonList(MIN), allocator.quarantined());
+    }
+
+    @Test
+    public void prefersNumbersNotOnProbation() {
+        long quarantine = DisplayAllocator.QUARANTINE;
+        DisplayAllocator.QUARANTINE = 0;
+        try {
+            int badDisplay = MIN + 1;
+            allocator.blacklist(badDisplay);
+            int range = MAX - MIN + 1 - 1;
+            for (int i=0; i<range; i++) {
+                assertThat(allocate(), not(equalTo(badDisplay)));
+            }
+            assertEquals(Collections.emptyList(), allocator.quarantined());
+            assertThat(allocate(), equalTo(badDisplay));
+
+            allocator.healthy(badDisplay);
+            for (int n = MIN; n <= MAX; n++) {
+                allocator.free(n);
+            }
+            Set<Integer> displays = new HashSet<Integer>();
+            for (int i=0; i<=range; i++) {
+                displays.add(allocate());
+            }
+            assertEquals(range + 1, displays.size());
+        } finally {
+            DisplayAllocator.QUARANTINE = quarantine;
+        }
+    }
+
     @Test
     public void doesReturnAllNumbersInRangeInclusive() {
         int range = MAX - MIN + 1;
@@ -101,4 +178,108 @@ public class DisplayAllocatorTest {
         assertArrayEquals(expected, displays);
     }
 
+    @Test
+    public void allocatesRangeSpanningSeveralWords() {
+        Set<Integer> displays = new HashSet<Integer>();
+        for (int i = 60; i <= 130; i++) {
+            int display = allocator.allocate(60, 130);
+            assertTrue(display >= 60 && display <= 130);
+            displays.add(display);
+        }
+        assertEquals(71, displays.size());
+    }
+
+    @Test
+    public void doesNotAllocateSameNumberConcurrently() throws Exception {
+        final Set<Integer> displays = Collections.synchronizedSet(new HashSet<Integer>());
+        final Set<Integer> duplicates = Collections.synchronizedSet(new HashSet<Integer>());
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        int display = allocator.allocate(0, 999);
+                        if (!displays.add(display)) {
+                            duplicates.add(display);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptySet(), duplicates);
+        assertEquals(800, displays.size());
+    }
+
+    @Test
+    public void allocatesOnlyNumbersFreeOnHost() {
+        BitSet free = new BitSet();
+        free.set(MIN + 2);
+        assertThat(allocator.allocate(MIN, MAX, free), equalTo(MIN + 2));
+        try {
+            allocator.allocate(MIN, MAX, free);
+            fail("Expected exception because the only free display is allocated, none received");
+        } catch(RuntimeException e) {
+        }
+    }
+
+    @Test
+    public void allocatesAllOrNothing() {
+        BitSet free = new BitSet();
+        free.set(MIN, MAX + 1);
+        allocator.reserve(MIN + 1);
+        allocator.reserve(MIN + 2);
+        try {
+            allocator.allocate(MIN, MAX, free, 3);
+            fail("Expected exception because only two displays are free, none received");
+        } catch(RuntimeException e) {
+        }
+        assertEquals(2, allocator.allocatedCount());
+        int[] allocated = allocator.allocate(MIN, MAX, free, 2);
+        Arrays.sort(allocated);
+        assertArrayEquals(new int[] {MIN, MAX}, allocated);
+    }
+
+    @Test
+    public void countsAllocatedNumbers() {
+        assertEquals(0, allocator.allocatedCount());
+        allocator.allocate(0, 999);
+        allocator.reserve(500);
+        allocator.reserve(64);
+        assertEquals(3, allocator.allocatedCount());
+        allocator.free(500);
+        assertEquals(2, allocator.allocatedCount());
+    }
+
+    @Test
+    public void countsAllocatedNumbersInRange() {
+        allocator.reserve(10);
+        allocator.reserve(63);
+        allocator.reserve(64);
+        allocator.reserve(200);
+        assertEquals(3, allocator.allocatedCount(10, 64));
+        assertEquals(2, allocator.allocatedCount(11, 199));
+        assertEquals(1, allocator.allocatedCount(64, 64));
+        assertEquals(0, allocator.allocatedCount(65, 199));
+        assertEquals(4, allocator.allocatedCount(0, DisplayAllocator.CAPACITY - 1));
+    }
+
+    @Test
+    public void accountsFramebuffersOfAllocatedNumbers() {
+        assertEquals(0, allocator.framebufferUsage(100));
+        int a = allocator.allocate(MIN, MAX);
+        int b = allocator.allocate(MIN, MAX);
+        allocator.setFramebufferSize(a, 1000);
+        assertEquals(1100, allocator.framebufferUsage(100));
+
+        allocator.free(a);
+        assertEquals(100, allocator.framebufferUsage(100));
+        allocator.reserve(a); // Size of the previous server is forgotten
+        assertEquals(200, allocator.framebufferUsage(100));
+        allocator.blacklist(b);
+        assertEquals(100, allocator.framebufferUsage(100));
+    }
 }
@@ -0,0 +1,43 @@
+package hudson.plugins.xvnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hudson.model.TaskListener;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class DisplayReaperTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void reclaimLeaseOfCompletedBuild() throws Exception {
+        DisplayAllocator allocator = DisplayAllocator.Property.of(j.jenkins).getAllocator();
+        allocator.reserve(4242);
+        LeaseJournal.get().acquired(j.jenkins, 4242, "gone#1", 4242);
+
+        Xvnc.DescriptorImpl config = j.jenkins.getDescriptorByType(Xvnc.DescriptorImpl.class);
+        assertEquals(1, reaper().reap(j.jenkins, config, TaskListener.NULL));
+        assertEquals(0, allocator.allocatedCount());
+        assertTrue(LeaseJournal.get().leases(j.jenkins).isEmpty());
+    }
+
+    @Test
+    public void freeUnleasedNumberOnSecondVisit() throws Exception {
+        DisplayAllocator allocator = DisplayAllocator.Property.of(j.jenkins).getAllocator();
+        allocator.reserve(4243);
+
+        Xvnc.DescriptorImpl config = j.jenkins.getDescriptorByType(Xvnc.DescriptorImpl.class);
+        DisplayReaper reaper = reaper();
+        assertEquals(0, reaper.reap(j.jenkins, config, TaskListener.NULL));
+        assertEquals(1, allocator.allocatedCount());
+        assertEquals(1, reaper.reap(j.jenkins, config, TaskListener.NULL));
+        assertEquals(0, allocator.allocatedCount());
+    }
+
+    private DisplayReaper reaper() {
+        return j.jenkins.getExtensionList(DisplayReaper.class).get(DisplayReaper.class);
+    }
+}
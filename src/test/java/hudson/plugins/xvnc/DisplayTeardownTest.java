@@ -0,0 +1,158 @@
+package hudson.plugins.xvnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.remoting.Callable;
+import hudson.util.OneShotEvent;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DisplayTeardownTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void drainWaitsForSubmittedTeardowns() throws Exception {
+        DisplayTeardown teardown = new DisplayTeardown();
+        assertFalse(teardown.drain(1000));
+
+        final OneShotEvent proceed = new OneShotEvent();
+        final AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            teardown.submit(new Runnable() {
+                public void run() {
+                    try {
+                        proceed.block();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                    done.incrementAndGet();
+                }
+            });
+        }
+        assertEquals(5, teardown.pending());
+
+        proceed.signal();
+        assertTrue(teardown.drain(10000));
+        assertEquals(5, done.get());
+        assertEquals(0, teardown.pending());
+    }
+
+    @Test
+    public void failedTeardownDoesNotStopTheQueue() throws Exception {
+        DisplayTeardown teardown = new DisplayTeardown();
+        final AtomicInteger done = new AtomicInteger();
+        teardown.submit(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("Expected");
+            }
+        });
+        teardown.submit(new Runnable() {
+            public void run() {
+                done.incrementAndGet();
+            }
+        });
+
+        assertTrue(teardown.drain(10000));
+        assertEquals(1, done.get());
+    }
+
+    @Test
+    public void captureAndStopInSingleCall() throws Exception {
+        File xauthority = tmp.newFile(".Xauthority-test");
+        DisplayTeardown.Display display = new DisplayTeardown.Display(4244, true, null, Collections.<String, String>emptyMap(),
+                xauthority.getPath(), tmp.getRoot().getPath());
+        final ByteArrayOutputStream screenshot = new ByteArrayOutputStream();
+        display.screenshot(new Callable<Void, IOException>() {
+            public Void call() throws IOException {
+                screenshot.write(new byte[] {1, 2, 3});
+                return null;
+            }
+        }, screenshot);
+
+        List<DisplayTeardown.Outcome> outcomes = DisplayTeardown.tearDown(FilePath.localChannel, Collections.singletonList(display));
+        assertEquals(1, outcomes.size());
+        assertTrue(outcomes.get(0).screenshotSaved);
+        assertTrue(outcomes.get(0).gone); // Nothing runs there
+        assertEquals(3, screenshot.size());
+        assertFalse(xauthority.exists());
+    }
+
+    @Test
+    public void readsOutputWhileCommandRuns() throws Exception {
+        File vncserver = tmp.newFile("vncserver");
+        FileUtils.writeStringToFile(vncserver, "#!/bin/sh\ni=0; while [ $i -lt 20000 ]; do i=$((i+1)); echo \"line $i of output\"; done\n");
+        new FilePath(vncserver).chmod(0755);
+        DisplayTeardown.Display display = new DisplayTeardown.Display(4244, true, vncserver.getPath(),
+                Collections.<String, String>emptyMap(), null, tmp.getRoot().getPath());
+
+        int timeout = DisplayTeardown.TIMEOUT;
+        DisplayTeardown.TIMEOUT = 5;
+        try {
+            DisplayTeardown.Outcome outcome = DisplayTeardown.tearDown(FilePath.localChannel, Collections.singletonList(display)).get(0);
+            assertTrue(outcome.gone);
+            assertEquals(20000, outcome.log.size()); // Not blocked on full pipe until timed out
+            assertEquals("line 20000 of output", outcome.log.get(19999));
+        } finally {
+            DisplayTeardown.TIMEOUT = timeout;
+        }
+    }
+
+    @Test
+    public void killsServerIgnoringTerm() throws Exception {
+        File lock = DisplayScanner.lock(4244);
+        Process server = new ProcessBuilder("sh", "-c", "trap '' TERM; echo $$ > " + lock.getPath() + "; exec sleep 60").start();
+        int grace = DisplayTeardown.KILL_GRACE;
+        DisplayTeardown.KILL_GRACE = 1;
+        try {
+            for (int i = 0; i < 100 && DisplayScanner.readPid(lock) <= 0; i++) {
+                Thread.sleep(50);
+            }
+            DisplayTeardown.Display display = new DisplayTeardown.Display(4244, true, null,
+                    Collections.<String, String>emptyMap(), null, tmp.getRoot().getPath());
+
+            DisplayTeardown.Outcome outcome = DisplayTeardown.tearDown(FilePath.localChannel, Collections.singletonList(display)).get(0);
+            assertTrue(outcome.log.toString(), outcome.gone);
+            assertEquals(137, server.waitFor()); // SIGKILL
+            assertFalse(lock.exists());
+        } finally {
+            DisplayTeardown.KILL_GRACE = grace;
+            server.destroy();
+            lock.delete();
+        }
+    }
+
+    @Test
+    public void killsServerWithoutLockFile() throws Exception {
+        File pid = new File(tmp.getRoot(), "pid");
+        ServerLog.Launched server = ServerLog.launch(new Launcher.LocalLauncher(StreamTaskListener.fromStdout()), 4244,
+                new String[] {"sh", "-c", "echo $$ > " + pid.getPath() + "; exec sleep 60"},
+                Collections.<String, String>emptyMap(), tmp.getRoot().getPath());
+        for (int i = 0; i < 100 && DisplayScanner.readPid(pid) <= 0; i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(DisplayScanner.lock(4244).exists());
+
+        DisplayTeardown.Display display = new DisplayTeardown.Display(4244, true, null,
+                Collections.<String, String>emptyMap(), null, tmp.getRoot().getPath());
+        display.log(server.getLog(), null);
+
+        DisplayTeardown.Outcome outcome = DisplayTeardown.tearDown(FilePath.localChannel, Collections.singletonList(display)).get(0);
+        assertTrue(outcome.log.toString(), outcome.gone);
+        assertFalse(DisplayScanner.isAlive(DisplayScanner.readPid(pid)));
+    }
+}
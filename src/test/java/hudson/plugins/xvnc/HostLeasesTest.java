@@ -0,0 +1,51 @@
+package hudson.plugins.xvnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hudson.FilePath;
+
+import java.io.File;
+import java.util.BitSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HostLeasesTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void agentsOnHostDoNotShareNumbers() throws Exception {
+        String dir = new File(tmp.getRoot(), "leases").getPath();
+        DisplayAllocator first = new DisplayAllocator();
+        DisplayAllocator second = new DisplayAllocator();
+
+        int[] leased = HostLeases.allocate(FilePath.localChannel, dir, first, 4250, 4251, free(4250, 4251), 1);
+        assertEquals(1, leased.length);
+        long conflicts = XvncMetrics.HOST_LEASE_CONFLICTS.get();
+        int[] other = HostLeases.allocate(FilePath.localChannel, dir, second, 4250, 4251, free(4250, 4251), 1);
+        assertTrue(leased[0] != other[0]);
+        assertEquals(1, second.allocatedCount());
+
+        HostLeases.release(FilePath.localChannel, dir, other);
+        second.free(other[0]);
+        try {
+            HostLeases.allocate(FilePath.localChannel, dir, second, leased[0], leased[0], free(leased[0], leased[0]), 1);
+            throw new AssertionError("Leased by the first agent");
+        } catch (RuntimeException e) {
+            assertEquals(0, second.allocatedCount());
+        }
+        assertTrue(XvncMetrics.HOST_LEASE_CONFLICTS.get() > conflicts);
+
+        HostLeases.release(FilePath.localChannel, dir, leased);
+        assertEquals(leased[0], HostLeases.allocate(FilePath.localChannel, dir, second, leased[0], leased[0], free(leased[0], leased[0]), 1)[0]);
+        HostLeases.release(FilePath.localChannel, dir, leased);
+    }
+
+    private static BitSet free(int min, int max) {
+        BitSet free = new BitSet();
+        free.set(min, max + 1);
+        return free;
+    }
+}
@@ -0,0 +1,93 @@
+package hudson.plugins.xvnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LeaseJournalTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void replayLiveLeases() throws Exception {
+        File file = new File(tmp.getRoot(), "leases.log");
+        LeaseJournal journal = new LeaseJournal(file);
+        journal.acquired(j.jenkins, 42, "project#1", 4242);
+        journal.acquired(j.jenkins, 43, "project#2", 4343);
+        journal.released(j.jenkins, 42);
+
+        LeaseJournal replayed = new LeaseJournal(file);
+        replayed.load();
+        List<LeaseJournal.Lease> leases = replayed.leases(j.jenkins);
+        assertEquals(1, leases.size());
+        assertEquals(43, leases.get(0).displayNumber);
+        assertEquals("project#2", leases.get(0).build);
+        assertEquals(4343, leases.get(0).pid);
+    }
+
+    @Test
+    public void ignoreRecordCutShortByCrash() throws Exception {
+        File file = new File(tmp.getRoot(), "leases.log");
+        LeaseJournal journal = new LeaseJournal(file);
+        journal.acquired(j.jenkins, 42, "project#1", 4242);
+
+        FileWriter writer = new FileWriter(file, true);
+        writer.write("+\t\t43\tproject#2\t43");
+        writer.close();
+
+        LeaseJournal replayed = new LeaseJournal(file);
+        replayed.load();
+        assertEquals(1, replayed.leases(j.jenkins).size());
+
+        replayed.acquired(j.jenkins, 44, "project#3", 4444);
+        LeaseJournal again = new LeaseJournal(file);
+        again.load();
+        assertEquals(2, again.leases(j.jenkins).size());
+    }
+
+    @Test
+    public void compactReleasedLeases() throws Exception {
+        File file = new File(tmp.getRoot(), "leases.log");
+        LeaseJournal journal = new LeaseJournal(file);
+        for (int i = 0; i < 100; i++) {
+            journal.acquired(j.jenkins, 42, "project#" + i, i);
+            journal.released(j.jenkins, 42);
+        }
+        journal.acquired(j.jenkins, 43, "project#100", 100);
+
+        LeaseJournal replayed = new LeaseJournal(file);
+        replayed.load();
+        assertEquals(1, replayed.leases(j.jenkins).size());
+    }
+
+    @Test
+    public void claimOnlyOrphanedLeases() throws Exception {
+        File file = new File(tmp.getRoot(), "leases.log");
+        LeaseJournal journal = new LeaseJournal(file);
+        journal.acquired(j.jenkins, 42, "project#1", 4242);
+
+        LeaseJournal replayed = new LeaseJournal(file);
+        replayed.load();
+        replayed.acquired(j.jenkins, 43, "project#2", 4343);
+        replayed.acquired(j.jenkins, 44, "project#3", 4444);
+        replayed.disowned(j.jenkins, 44);
+
+        List<LeaseJournal.Lease> orphans = replayed.claimOrphans(j.jenkins);
+        assertEquals(2, orphans.size());
+        assertEquals(42, orphans.get(0).displayNumber);
+        assertEquals(44, orphans.get(1).displayNumber);
+        assertTrue(replayed.claimOrphans(j.jenkins).isEmpty());
+
+        replayed.unclaim(orphans.get(0));
+        assertEquals(1, replayed.claimOrphans(j.jenkins).size());
+    }
+}
@@ -0,0 +1,78 @@
+package hudson.plugins.xvnc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import hudson.FilePath;
+import hudson.remoting.Callable;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class LiveFramesTest {
+
+    @Test
+    public void sendsChangedTilesOnly() throws Exception {
+        File lock = DisplayScanner.lock(4246);
+        lock.createNewFile();
+        Screen screen = new Screen();
+        try {
+            LiveFrames.Frame frame = LiveFrames.sample(FilePath.localChannel, "test", 4246, screen, 60000);
+            assertTrue(frame.full);
+            assertEquals(100, frame.width);
+            assertEquals(4, frame.bounds.size());
+
+            frame = LiveFrames.sample(FilePath.localChannel, "test", 4246, screen, 60000);
+            assertFalse(frame.full);
+            assertEquals(0, frame.bounds.size());
+
+            screen.image.setRGB(70, 10, 0xff0000);
+            frame = LiveFrames.sample(FilePath.localChannel, "test", 4246, screen, 60000);
+            assertFalse(frame.full);
+            assertEquals(1, frame.bounds.size());
+            assertArrayEquals(new int[] {64, 0, 36, 64}, frame.bounds.get(0));
+        } finally {
+            LiveFrames.close(FilePath.localChannel, "test");
+            lock.delete();
+        }
+    }
+
+    @Test
+    public void throttlesSamplesOfNode() {
+        LiveView.Throttle throttle = new LiveView.Throttle();
+        assertTrue(throttle.acquire(1000, 10));
+        assertFalse(throttle.acquire(1050, 10));
+        assertTrue(throttle.acquire(1100, 10));
+        assertTrue(throttle.acquire(1100, 0));
+    }
+
+    /**
+     * Backend capturing 100x80 image as PNG, which is decoded to the same pixels.
+     */
+    private static final class Screen extends DisplayBackend {
+        private final BufferedImage image = new BufferedImage(100, 80, BufferedImage.TYPE_INT_RGB);
+
+        @Override
+        public String getCommandline() {
+            return "true";
+        }
+
+        @Override
+        public Callable<Void, IOException> capture(int displayNumber, final OutputStream out) {
+            return new Callable<Void, IOException>() {
+                public Void call() throws IOException {
+                    ImageIO.write(image, "png", out);
+                    out.close();
+                    return null;
+                }
+            };
+        }
+    }
+}
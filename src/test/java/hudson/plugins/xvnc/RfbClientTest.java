@@ -0,0 +1,123 @@
+package hudson.plugins.xvnc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RfbClientTest {
+
+    private static final int DISPLAY = 4217;
+
+    private ServerSocket server;
+    private Thread serverThread;
+    private volatile Throwable serverFailure;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new ServerSocket(5900 + DISPLAY, 1, InetAddress.getByName("127.0.0.1"));
+        serverThread = new Thread("Fake RFB server") {
+            @Override public void run() {
+                try {
+                    serve(server.accept());
+                } catch (Throwable t) {
+                    serverFailure = t;
+                }
+            }
+        };
+        serverThread.start();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.close();
+        serverThread.join(10000);
+    }
+
+    @Test
+    public void readFramebuffer() throws Exception {
+        RfbClient client = RfbClient.connect(DISPLAY, 10000);
+        try {
+            assertEquals(3, client.getWidth());
+            assertEquals(2, client.getHeight());
+
+            List<Rectangle> updated = client.update(false);
+            assertEquals(1, updated.size());
+            assertEquals(new Rectangle(1, 0, 2, 2), updated.get(0));
+
+            BufferedImage image = client.toImage();
+            assertEquals(0x000000, image.getRGB(0, 0) & 0xffffff);
+            assertEquals(0xff0000, image.getRGB(1, 0) & 0xffffff);
+            assertEquals(0x00ff00, image.getRGB(2, 0) & 0xffffff);
+            assertEquals(0x0000ff, image.getRGB(1, 1) & 0xffffff);
+            assertEquals(0x123456, image.getRGB(2, 1) & 0xffffff);
+        } finally {
+            client.close();
+        }
+        serverThread.join(10000);
+        if (serverFailure != null) throw new AssertionError(serverFailure);
+    }
+
+    /**
+     * RFB 3.8 server with no authentication and 3x2 framebuffer.
+     */
+    private static void serve(Socket socket) throws Exception {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+        out.write("RFB 003.008\n".getBytes("US-ASCII"));
+        byte[] version = new byte[12];
+        in.readFully(version);
+        assertEquals("RFB 003.008\n", new String(version, "US-ASCII"));
+
+        out.writeByte(1);
+        out.writeByte(1); // None
+        assertEquals(1, in.readUnsignedByte());
+        out.writeInt(0); // SecurityResult OK
+
+        assertEquals(1, in.readUnsignedByte()); // shared
+        out.writeShort(3);
+        out.writeShort(2);
+        out.write(new byte[16]);
+        out.writeInt(4);
+        out.write("test".getBytes("US-ASCII"));
+
+        assertEquals(0, in.readUnsignedByte()); // SetPixelFormat
+        in.readFully(new byte[19]);
+        assertEquals(2, in.readUnsignedByte()); // SetEncodings
+        in.readUnsignedByte();
+        int encodings = in.readUnsignedShort();
+        in.readFully(new byte[encodings * 4]);
+
+        assertEquals(3, in.readUnsignedByte()); // FramebufferUpdateRequest
+        assertEquals(0, in.readUnsignedByte());
+        in.readFully(new byte[8]);
+
+        out.writeByte(2); // Bell, to be ignored
+        out.writeByte(0); // FramebufferUpdate
+        out.writeByte(0);
+        out.writeShort(1);
+        out.writeShort(1);
+        out.writeShort(0);
+        out.writeShort(2);
+        out.writeShort(2);
+        out.writeInt(0); // Raw
+        // Little endian BGRX
+        out.write(new byte[] {0, 0, (byte) 0xff, 0,  0, (byte) 0xff, 0, 0});
+        out.write(new byte[] {(byte) 0xff, 0, 0, 0,  0x56, 0x34, 0x12, 0});
+        out.flush();
+
+        in.read(); // Wait for client to disconnect
+        socket.close();
+    }
+}
@@ -0,0 +1,85 @@
+package hudson.plugins.xvnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import hudson.FilePath;
+import hudson.remoting.Callable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScreenCheckpointsTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void dropUnchangedScreenshots() throws Exception {
+        File lock = DisplayScanner.lock(4245);
+        lock.createNewFile();
+        try {
+            File dir = new File(tmp.getRoot(), "checkpoints");
+            String id = ScreenCheckpoints.start(FilePath.localChannel, 4245, new Frames("a", "a", "b"), dir.getPath(),
+                    Collections.<String, String>emptyMap());
+            new File(dir, "1-login").createNewFile();
+            new File(dir, "2-same").createNewFile();
+            new File(dir, "3-changed page").createNewFile();
+
+            ByteArrayOutputStream zip = new ByteArrayOutputStream();
+            int[] saved = ScreenCheckpoints.stop(id, dir.getPath(), zip).call();
+            assertEquals(2, saved[0]);
+            assertEquals(1, saved[1]);
+            assertFalse(dir.exists());
+
+            List<String> names = new ArrayList<String>();
+            ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+            for (ZipEntry entry; (entry = in.getNextEntry()) != null;) {
+                names.add(entry.getName());
+            }
+            assertEquals(2, names.size());
+            assertEquals("001-1-login.jpg", names.get(0));
+            assertEquals("002-3-changed_page.jpg", names.get(1));
+        } finally {
+            lock.delete();
+        }
+    }
+
+    /**
+     * Backend capturing given frames one after another.
+     */
+    private static final class Frames extends DisplayBackend {
+        private final String[] frames;
+        private int next;
+
+        private Frames(String... frames) {
+            this.frames = frames;
+        }
+
+        @Override
+        public String getCommandline() {
+            return "true";
+        }
+
+        @Override
+        public Callable<Void, IOException> capture(int displayNumber, final OutputStream out) {
+            return new Callable<Void, IOException>() {
+                public Void call() throws IOException {
+                    out.write(frames[next++].getBytes("UTF-8"));
+                    out.close();
+                    return null;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package hudson.plugins.xvnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import hudson.Launcher;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ServerLogTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final int size = ServerLog.SIZE;
+
+    @After
+    public void restore() {
+        ServerLog.SIZE = size;
+    }
+
+    @Test
+    public void keepsTailOfRotatedOutput() throws Exception {
+        ServerLog.SIZE = 1;
+        ServerLog.Launched proc = ServerLog.launch(new Launcher.LocalLauncher(StreamTaskListener.fromStdout()), 4246,
+                new String[] {"sh", "-c", "i=0; while [ $i -lt 2000 ]; do i=$((i+1)); echo line $i; done"},
+                Collections.<String, String>emptyMap(), tmp.getRoot().getPath());
+        assertEquals(0, proc.join());
+
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        String tail = ServerLog.close(proc.getLog(), full).call();
+        assertEquals(ServerLog.TAIL, tail.split("\n").length);
+        assertTrue(tail, tail.endsWith("line 1999\nline 2000\n"));
+        assertTrue("At most current and previous file kept: " + full.size(), full.size() <= 2 * 1024);
+        assertTrue(full.toString().endsWith("line 2000\n"));
+        assertEquals("", ServerLog.close(proc.getLog(), null).call()); // Closed already
+    }
+}
@@ -0,0 +1,30 @@
+package hudson.plugins.xvnc;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StartupHistoryTest {
+
+    @Test
+    public void failureRateOfRecentStarts() {
+        StartupHistory history = new StartupHistory();
+        assertEquals(0, history.failureRate());
+
+        history.record(true);
+        history.record(false);
+        history.record(false);
+        history.record(false);
+        assertEquals(25, history.failureRate());
+
+        for (int i = 0; i < StartupHistory.WINDOW; i++) {
+            history.record(false);
+        }
+        assertEquals("Old failures forgotten", 0, history.failureRate());
+
+        for (int i = 0; i < StartupHistory.WINDOW / 2; i++) {
+            history.record(true);
+        }
+        assertEquals(50, history.failureRate());
+    }
+}
@@ -0,0 +1,256 @@
+package hudson.plugins.xvnc;
+
+import static org.junit.Assume.assumeTrue;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.InvisibleAction;
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+/**
+ * Runs hundreds of builds wrapped by Xvnc at once on local agents and reports the time spent on displays.
+ *
+ * Skipped unless the number of builds is given:
+ * <pre>
+ * mvn test -Dtest=XvncLoadTest -Djenkins.test.timeout=0 -Dhudson.plugins.xvnc.XvncLoadTest.builds=500
+ * </pre>
+ * Displays are started by <tt>stub-vncserver</tt> that takes up to {@link #DELAY} milliseconds to start and
+ * fails in {@link #FAILURES} percent of the cases. All agents run on this host, so builds on different agents
+ * collide on display numbers the way they do with real servers.
+ */
+public class XvncLoadTest {
+
+    private static final String PREFIX = XvncLoadTest.class.getName() + ".";
+
+    /**
+     * Builds to run, 0 to skip the test.
+     */
+    private static final int BUILDS = Integer.getInteger(PREFIX + "builds", 0);
+    private static final int AGENTS = Integer.getInteger(PREFIX + "agents", 10);
+    private static final int EXECUTORS = Integer.getInteger(PREFIX + "executors", 10);
+    /**
+     * Milliseconds every build uses its display for.
+     */
+    private static final int WORK = Integer.getInteger(PREFIX + "work", 1000);
+    /**
+     * Maximal server startup delay in milliseconds.
+     */
+    private static final int DELAY = Integer.getInteger(PREFIX + "delay", 500);
+    /**
+     * Percentage of server starts failing.
+     */
+    private static final int FAILURES = Integer.getInteger(PREFIX + "failures", 5);
+    /**
+     * Display numbers used, starting at :5000 not to meet real servers.
+     */
+    private static final int RANGE = Integer.getInteger(PREFIX + "range", 1000);
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void concurrentBuilds() throws Exception {
+        assumeTrue(BUILDS > 0);
+
+        j.jenkins.setNumExecutors(0);
+        List<DumbSlave> agents = new ArrayList<DumbSlave>();
+        for (int i = 0; i < AGENTS; i++) {
+            DumbSlave agent = new DumbSlave("agent" + i, "", tmp.newFolder("agent" + i).getPath(), String.valueOf(EXECUTORS),
+                    Node.Mode.NORMAL, "", j.createComputerLauncher(null), RetentionStrategy.NOOP,
+                    Collections.<NodeProperty<?>>emptyList());
+            j.jenkins.addNode(agent);
+            agents.add(agent);
+        }
+        for (DumbSlave agent: agents) {
+            agent.toComputer().connect(false).get();
+        }
+
+        Xvnc.DescriptorImpl config = j.jenkins.getDescriptorByType(Xvnc.DescriptorImpl.class);
+        config.minDisplayNumber = 5000;
+        config.maxDisplayNumber = 5000 + RANGE - 1;
+        config.xvnc = stub() + " :$DISPLAY_NUMBER " + DELAY + " " + FAILURES;
+        config.readinessTimeout = 10;
+
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < BUILDS; i++) {
+            FreeStyleProject p = j.createFreeStyleProject("load" + i);
+            p.getBuildWrappersList().add(new Xvnc(false, false));
+            p.getBuildersList().add(new Work());
+            projects.add(p);
+        }
+
+        long retries = XvncMetrics.RETRIES.get();
+        long blacklisted = XvncMetrics.BLACKLISTED.get();
+        long[] allocationWait = XvncMetrics.ALLOCATION_WAIT.counts();
+        long[] startup = XvncMetrics.STARTUP.counts();
+        long[] kill = XvncMetrics.KILL.counts();
+
+        long start = System.currentTimeMillis();
+        List<Future<FreeStyleBuild>> futures = new ArrayList<Future<FreeStyleBuild>>();
+        for (FreeStyleProject p: projects) {
+            futures.add(p.scheduleBuild2(0));
+        }
+        List<FreeStyleBuild> builds = new ArrayList<FreeStyleBuild>();
+        for (Future<FreeStyleBuild> future: futures) {
+            builds.add(j.assertBuildStatusSuccess(future));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        for (DumbSlave agent: agents) {
+            DisplayAllocator.Property.of(agent).getTeardown().drain(DisplayTeardown.TIMEOUT * 1000L);
+        }
+
+        List<Long> setup = new ArrayList<Long>();
+        List<Long> teardown = new ArrayList<Long>();
+        long lost = 0;
+        long busy = 0;
+        int collisions = 0;
+        int failures = 0;
+        for (FreeStyleBuild build: builds) {
+            Timing timing = build.getAction(Timing.class);
+            long end = build.getStartTimeInMillis() + build.getDuration();
+            setup.add(timing.setup);
+            teardown.add(end - timing.end);
+            lost += timing.setup + end - timing.end;
+            busy += build.getDuration();
+
+            String log = FileUtils.readFileToString(build.getLogFile());
+            collisions += count(log, "A server is already running");
+            failures += count(log, "Injected failure");
+        }
+        int starts = BUILDS + collisions + failures;
+
+        System.out.println(String.format("%d builds on %d agents with %d executors in %d ms", BUILDS, AGENTS, EXECUTORS, elapsed));
+        System.out.println(String.format("%-40s %8s %8s %8s %8s", "", "p50", "p90", "p99", "max"));
+        row("Setup, build start to builder (ms)", setup);
+        row("Teardown, builder to build end (ms)", teardown);
+        row("Allocation wait (ms, bucket bound)", allocationWait, XvncMetrics.ALLOCATION_WAIT.counts());
+        row("Startup (ms, bucket bound)", startup, XvncMetrics.STARTUP.counts());
+        row("Kill (ms, bucket bound)", kill, XvncMetrics.KILL.counts());
+        System.out.println(String.format("Collisions: %d of %d starts (%.1f%%)", collisions, starts, 100.0 * collisions / starts));
+        System.out.println(String.format("Injected failures: %d of %d starts (%.1f%%)", failures, starts, 100.0 * failures / starts));
+        System.out.println(String.format("Retries: %d, blacklisted: %d", XvncMetrics.RETRIES.get() - retries, XvncMetrics.BLACKLISTED.get() - blacklisted));
+        System.out.println(String.format("Executor time lost to X management: %d of %d ms (%.1f%%)", lost, busy, 100.0 * lost / busy));
+    }
+
+    /**
+     * Resources are not executable once copied to the class path.
+     */
+    private String stub() throws IOException {
+        File stub = tmp.newFile("stub-vncserver");
+        FileUtils.copyURLToFile(XvncLoadTest.class.getResource("XvncLoadTest/stub-vncserver"), stub);
+        stub.setExecutable(true);
+        return stub.getAbsolutePath();
+    }
+
+    private static int count(String log, String line) {
+        int count = 0;
+        for (int i = log.indexOf(line); i >= 0; i = log.indexOf(line, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static void row(String name, List<Long> samples) {
+        Collections.sort(samples);
+        System.out.println(String.format("%-40s %8d %8d %8d %8d", name,
+                percentile(samples, 0.5), percentile(samples, 0.9), percentile(samples, 0.99), samples.get(samples.size() - 1)));
+    }
+
+    private static long percentile(List<Long> sorted, double q) {
+        return sorted.get(Math.max(0, (int) Math.ceil(q * sorted.size()) - 1));
+    }
+
+    /**
+     * Quantiles of observations recorded in histogram between two snapshots.
+     */
+    private static void row(String name, long[] before, long[] after) {
+        long[] counts = new long[after.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = after[i] - before[i];
+            total += counts[i];
+        }
+        System.out.println(String.format("%-40s %8s %8s %8s %8s", name,
+                quantile(counts, total, 0.5), quantile(counts, total, 0.9), quantile(counts, total, 0.99), quantile(counts, total, 1)));
+    }
+
+    private static String quantile(long[] counts, long total, double q) {
+        if (total == 0) return "-";
+
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long bound = XvncMetrics.Histogram.bound(i);
+                return bound == Long.MAX_VALUE ? ">" + XvncMetrics.Histogram.bound(i - 1) : String.valueOf(bound);
+            }
+        }
+        return "-";
+    }
+
+    /**
+     * Keep the display for a while and record when it was available.
+     */
+    public static class Work extends Builder {
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            long start = System.currentTimeMillis();
+            Thread.sleep(WORK);
+            build.addAction(new Timing(start - build.getStartTimeInMillis(), System.currentTimeMillis()));
+            return true;
+        }
+
+        @TestExtension("concurrentBuilds")
+        public static class DescriptorImpl extends BuildStepDescriptor<Builder> {
+            @Override
+            public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+                return true;
+            }
+
+            @Override
+            public String getDisplayName() {
+                return "Use display";
+            }
+        }
+    }
+
+    public static final class Timing extends InvisibleAction {
+        /**
+         * Milliseconds from build start to display available.
+         */
+        public final long setup;
+        /**
+         * Time display was used until.
+         */
+        public final long end;
+
+        private Timing(long setup, long end) {
+            this.setup = setup;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package hudson.plugins.xvnc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class XvncMetricsTest {
+
+    @Test
+    public void histogramBuckets() {
+        XvncMetrics.Histogram histogram = XvncMetrics.STARTUP;
+        long before = histogram.count();
+        histogram.observe(0);
+        histogram.observe(7);
+        histogram.observe(100000);
+        assertEquals(before + 3, histogram.count());
+
+        String text = write(histogram);
+        assertTrue(text, text.contains("# TYPE xvnc_startup_milliseconds histogram"));
+        assertTrue(text, text.contains("xvnc_startup_milliseconds_bucket{le=\"+Inf\"} " + (before + 3)));
+        assertTrue(text, text.contains("xvnc_startup_milliseconds_count " + (before + 3)));
+    }
+
+    @Test
+    public void allocationsAreCounted() {
+        long allocations = XvncMetrics.ALLOCATIONS.get();
+        long blacklisted = XvncMetrics.BLACKLISTED.get();
+        DisplayAllocator allocator = new DisplayAllocator();
+        allocator.blacklist(allocator.allocate(0, 1));
+        allocator.allocate(0, 1);
+
+        assertTrue(XvncMetrics.ALLOCATIONS.get() >= allocations + 2);
+        assertTrue(XvncMetrics.BLACKLISTED.get() >= blacklisted + 1);
+        assertTrue(XvncMetrics.ALLOCATION_PROBES.get() > 0);
+    }
+
+    private static String write(XvncMetrics.Histogram histogram) {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        histogram.write(writer);
+        writer.flush();
+        return out.toString();
+    }
+}
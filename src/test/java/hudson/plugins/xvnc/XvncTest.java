@@ -23,28 +23,43 @@
  */
 package hudson.plugins.xvnc;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
 import hudson.model.Result;
 import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
 import hudson.model.Descriptor;
 import hudson.model.FreeStyleProject;
 import hudson.model.Hudson;
 import hudson.model.Node;
 import hudson.plugins.xvnc.Xvnc.DescriptorImpl;
+import hudson.remoting.Channel;
 import hudson.slaves.DumbSlave;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Builder;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
 import hudson.util.OneShotEvent;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.Future;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.Bug;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
 
 public class XvncTest {
 
@@ -155,20 +170,147 @@ public class XvncTest {
         configRoundtrip(slave); // With property
     }
 
+    @Test
+    public void leaseDisplayFromPool() throws Exception {
+        FreeStyleProject p = j.jenkins.createProject(FreeStyleProject.class, "project");
+        p.getBuildWrappersList().add(new Xvnc(false, true));
+        DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+        descriptor.minDisplayNumber = 42;
+        descriptor.maxDisplayNumber = 44;
+        // Server that only creates its lock file, leases are checked against it
+        descriptor.xvnc = "sh -c 'echo $$ > /tmp/.X$DISPLAY_NUMBER-lock; exec sleep 600'";
+        descriptor.readinessTimeout = 0;
+        descriptor.poolSize = 1;
+
+        try {
+            j.buildAndAssertSuccess(p);
+
+            DisplayPool pool = j.jenkins.getNodeProperties().get(DisplayAllocator.Property.class).getPool();
+            for (int i = 0; i < 100 && pool.idleCount() == 0; i++) {
+                Thread.sleep(100);
+            }
+
+            FreeStyleBuild build = j.buildAndAssertSuccess(p);
+            j.assertLogContains("Using pooled display", build);
+        } finally {
+            for (int n = 42; n <= 44; n++) {
+                File lock = DisplayScanner.lock(n);
+                int pid = DisplayScanner.readPid(lock);
+                if (pid > 0) {
+                    new ProcessBuilder("kill", String.valueOf(pid)).start().waitFor();
+                }
+                lock.delete();
+            }
+        }
+    }
+
+    @Test
+    public void failWhenDisplayDoesNotGetReady() throws Exception {
+        FreeStyleProject p = j.jenkins.createProject(FreeStyleProject.class, "project");
+        fakeXvncRun(p).readinessTimeout = 1;
+
+        FreeStyleBuild build = p.scheduleBuild2(0).get();
+        j.assertBuildStatus(Result.FAILURE, build);
+        j.assertLogContains("Display :42 not ready 1 seconds after running 'true'", build);
+    }
+
+    @Test
+    public void chooseBackendByJobThenLabel() throws Exception {
+        DumbSlave slave = j.createSlave("xvfb-capable", null);
+        DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+        descriptor.backendRules.add(new BackendRule("xvfb-capable", new XvfbBackend("800x600x16", XvfbBackend.Framebuffer.FILE)));
+
+        Xvnc xvnc = new Xvnc(false, false);
+        assertTrue(xvnc.getBackend(j.jenkins) instanceof XvncBackend);
+        DisplayBackend backend = xvnc.getBackend(slave);
+        assertEquals("Xvfb :$DISPLAY_NUMBER -screen 0 800x600x16 -nolisten tcp -fbdir /tmp/.Xvfb-fb$DISPLAY_NUMBER", backend.getCommandline());
+
+        xvnc.setBackend(new XvncBackend());
+        assertTrue(xvnc.getBackend(slave) instanceof XvncBackend);
+    }
+
+    @Test
+    public void requestScreenOnTopOfBackendDefault() throws Exception {
+        Xvnc xvnc = new Xvnc(false, false);
+        XvfbBackend xvfb = new XvfbBackend("800x600x16", XvfbBackend.Framebuffer.MEMORY);
+        assertEquals(null, xvnc.getScreen(xvfb));
+        assertEquals(1024L * 768 * 4, xvnc.getFramebufferSize(j.jenkins)); // Xvnc with its default screen
+
+        xvnc.setDepth(24);
+        assertEquals("800x600x24", xvnc.getScreen(xvfb).toString());
+        xvnc.setGeometry("3840x2160");
+        assertEquals("Xvfb :$DISPLAY_NUMBER -screen 0 3840x2160x24 -nolisten tcp", xvfb.getCommandline(xvnc.getScreen(xvfb)));
+
+        xvnc.setBackend(new XvncBackend());
+        assertEquals(3840L * 2160 * 4, xvnc.getFramebufferSize(j.jenkins));
+        assertTrue(new XvncBackend().getCommandline(xvnc.getScreen(new XvncBackend())).endsWith(" -geometry 3840x2160 -depth 24"));
+    }
+
+    @Test
+    public void releaseDisplayBeforePublishers() throws Exception {
+        FreeStyleProject p = j.jenkins.createProject(FreeStyleProject.class, "project");
+        fakeXvncRun(p);
+        p.getPublishersList().add(new DisplayReleased());
+
+        j.buildAndAssertSuccess(p);
+    }
+
+    @Test
+    public void keepCapturesOfBuildFailedByPublisher() throws Exception {
+        FreeStyleProject p = j.jenkins.createProject(FreeStyleProject.class, "project");
+        fakeXvncRun(p).xvnc = "sh -c 'echo started display $DISPLAY_NUMBER'";
+        p.getPublishersList().add(new FailAfterRelease());
+
+        FreeStyleBuild build = p.scheduleBuild2(0).get();
+        j.assertBuildStatus(Result.FAILURE, build);
+        DisplayAllocator.Property.of(build.getBuiltOn()).getTeardown().drain(10000);
+
+        File log = new File(build.getArtifactsDir(), "xvnc.log");
+        assertTrue("Server output saved once the build has failed", log.exists());
+        assertTrue(FileUtils.readFileToString(log).contains("started display 42"));
+        j.assertLogContains("started display 42", build); // Tail of the output printed by the teardown
+    }
+
+    @Test
+    public void serverOutputStaysOnAgent() throws Exception {
+        DumbSlave slave = j.createOnlineSlave();
+        // Streams exported by the launcher of the build would carry the output through the controller
+        Launcher launcher = new Launcher(j.createTaskListener(), slave.getChannel()) {
+            @Override public Proc launch(ProcStarter starter) throws IOException {
+                throw new AssertionError("Server launched through the launcher of the build");
+            }
+            @Override public Channel launchChannel(String[] cmd, OutputStream out, FilePath workDir, Map<String, String> envVars) {
+                throw new AssertionError();
+            }
+            @Override public void kill(Map<String, String> modelEnvVars) {
+                throw new AssertionError();
+            }
+        };
+
+        ServerLog.Launched proc = ServerLog.launch(launcher, 42,
+                new String[] {"sh", "-c", "i=0; while [ $i -lt 2000 ]; do i=$((i+1)); echo line $i; done"},
+                Collections.<String, String>emptyMap(), slave.getRootPath().getRemote());
+        assertEquals(0, proc.join());
+
+        String tail = slave.getChannel().call(ServerLog.close(proc.getLog(), null));
+        assertTrue(tail, tail.endsWith("line 1999\nline 2000\n"));
+    }
+
     // TODO available since 1.479 in JenkinsRule
     private <N extends Node> N configRoundtrip(N node) throws Exception {
         j.submit(j.createWebClient().goTo("/computer/" + node.getNodeName() + "/configure").getFormByName("config"));
         return (N)j.jenkins.getNode(node.getNodeName());
     }
 
-    private Xvnc fakeXvncRun(FreeStyleProject p) throws Exception {
+    private DescriptorImpl fakeXvncRun(FreeStyleProject p) throws Exception {
         final Xvnc xvnc = new Xvnc(false, false);
         p.getBuildWrappersList().add(xvnc);
         DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
         descriptor.maxDisplayNumber = descriptor.minDisplayNumber = 42;
         // Do nothing so next build using the same display can succeed. This is poor man's simulation of distinct build machine
         descriptor.xvnc = "true";
-        return xvnc;
+        descriptor.readinessTimeout = 0; // Nothing to wait for
+        return descriptor;
     }
 
     private Xvnc.DescriptorImpl runXvnc(FreeStyleProject p) throws Exception {
@@ -180,6 +322,60 @@ public class XvncTest {
         return descriptor;
     }
 
+    public static class DisplayReleased extends Recorder {
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            DisplayAllocator.Property property = DisplayAllocator.Property.of(build.getBuiltOn());
+            property.getTeardown().drain(10000);
+            return property.getAllocator().allocatedCount() == 0;
+        }
+
+        public BuildStepMonitor getRequiredMonitorService() {
+            return BuildStepMonitor.NONE;
+        }
+
+        @TestExtension("releaseDisplayBeforePublishers")
+        public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+            @Override
+            public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+                return true;
+            }
+
+            @Override
+            public String getDisplayName() {
+                return "Display released";
+            }
+        }
+    }
+
+    public static class FailAfterRelease extends Recorder {
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            DisplayAllocator.Property property = DisplayAllocator.Property.of(build.getBuiltOn());
+            property.getTeardown().drain(10000);
+            return false; // Display is gone, its captures not saved yet
+        }
+
+        public BuildStepMonitor getRequiredMonitorService() {
+            return BuildStepMonitor.NONE;
+        }
+
+        @TestExtension("keepCapturesOfBuildFailedByPublisher")
+        public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+            @Override
+            public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+                return true;
+            }
+
+            @Override
+            public String getDisplayName() {
+                return "Fail after release";
+            }
+        }
+    }
+
     private static class Blocker extends Builder {
 
         private static final OneShotEvent RUNNING = new OneShotEvent();